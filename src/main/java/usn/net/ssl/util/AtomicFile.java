@@ -0,0 +1,121 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.GeneralSecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces files atomically and durably: the content goes to a temporary file
+ * next to the target, accessible to the current user only, which is synced
+ * and renamed over the target. Readers see either the old or the new file,
+ * and after a crash the directory holds one of them, never a partial file.
+ */
+final class AtomicFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AtomicFile.class);
+
+    /**
+     * writes the content of a file
+     */
+    interface Content {
+
+        /**
+         * @param out the temporary file, buffered; must not be closed
+         */
+        void writeTo(OutputStream out) throws IOException, GeneralSecurityException;
+    }
+
+    private AtomicFile() {
+    }
+
+    /**
+     * @param target the file to replace, its directory must exist
+     * @param keepAttributes whether an existing target passes its
+     * permissions, owner and group on to the new file
+     * @param content writes the new file
+     * @return the size of the new file
+     * @throws IOException if the file could not be written, the target is
+     * unchanged then
+     * @throws GeneralSecurityException if thrown by the content
+     */
+    static long write(Path target, boolean keepAttributes, Content content)
+            throws IOException, GeneralSecurityException {
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            FileOutputStream file = new FileOutputStream(temp.toFile());
+            try {
+                OutputStream out = new BufferedOutputStream(file);
+                content.writeTo(out);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            if (keepAttributes) {
+                copyAttributes(target, temp);
+            }
+            long bytes = Files.size(temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            syncDirectory(dir);
+            return bytes;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    } // write
+
+    private static void copyAttributes(Path from, Path to) {
+        if (!Files.exists(from)) {
+            return;
+        }
+        PosixFileAttributeView source = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        PosixFileAttributeView target = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (source == null || target == null) {
+            return;
+        }
+        try {
+            target.setPermissions(source.readAttributes().permissions());
+            // only possible with the privileges to write a system cacerts
+            target.setOwner(source.getOwner());
+            target.setGroup(source.readAttributes().group());
+        } catch (IOException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("cannot copy the attributes of " + from + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        // makes the rename itself durable; not supported on every platform
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("cannot sync " + dir + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+} // class AtomicFile
@@ -0,0 +1,19 @@
+package usn.net.ssl.util;
+
+/**
+ * Receives the results of a {@link BatchScanner} run, one host at a time, as
+ * soon as each host is done. Called from the persist stage worker threads, so
+ * implementations must be thread safe if that stage has more than one worker.
+ */
+public interface BatchResultHandler {
+
+    /**
+     * Handle the result of a single target.
+     *
+     * @param result the result, either failed or carrying the untrusted
+     * certificates
+     * @throws Exception logged and otherwise ignored, it does not stop the
+     * batch
+     */
+    void handle(ScanResult result) throws Exception;
+} // interface BatchResultHandler
@@ -0,0 +1,516 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans many targets concurrently by running them through a staged pipeline:
+ * resolve, connect, handshake, evaluate and persist. Every stage has its own
+ * set of worker threads and hands jobs over to the next stage through a
+ * bounded queue, so memory use does not grow with the size of the target list.
+ * Results are passed to a {@link BatchResultHandler} one host at a time, as
+ * soon as each host is done.
+ */
+public class BatchScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchScanner.class);
+
+    /**
+     * the stages of the pipeline, in processing order
+     */
+    public enum Stage {
+        RESOLVE, CONNECT, HANDSHAKE, EVALUATE, PERSIST
+    }
+
+    //marks the end of the input for a stage worker
+    private static final ScanJob END = new ScanJob(null);
+
+    private final InstallCert installer;
+    private final Map<Stage, Integer> workers = new EnumMap<Stage, Integer>(Stage.class);
+    private int queueCapacity = 256;
+    private BatchResultHandler resultHandler;
+    private NioHandshakeEngine nioEngine;
+
+    public BatchScanner(InstallCert installer) {
+        if (installer == null) {
+            throw new IllegalArgumentException("installer cannot be null");
+        }
+        this.installer = installer;
+        workers.put(Stage.RESOLVE, 8);
+        workers.put(Stage.CONNECT, 32);
+        workers.put(Stage.HANDSHAKE, 32);
+        workers.put(Stage.EVALUATE, 2);
+        workers.put(Stage.PERSIST, 1);
+    }
+
+    public int getWorkers(Stage stage) {
+        return workers.get(stage);
+    }
+
+    public void setWorkers(Stage stage, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("at least one worker is needed for " + stage);
+        }
+        workers.put(stage, count);
+    }
+
+    /**
+     * Sets the worker counts from a specification such as
+     * <code>resolve=8,connect=64,handshake=64,evaluate=2,persist=1</code>.
+     * Stages that are not mentioned keep their current setting. A single
+     * number applies to the resolve, connect and handshake stages.
+     *
+     * @param spec the specification
+     * @throws IllegalArgumentException if the specification cannot be parsed
+     */
+    public void setWorkers(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        if (!spec.contains("=")) {
+            int count = Integer.parseInt(spec.trim());
+            setWorkers(Stage.RESOLVE, count);
+            setWorkers(Stage.CONNECT, count);
+            setWorkers(Stage.HANDSHAKE, count);
+            return;
+        }
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("invalid worker setting '" + part + "'");
+            }
+            setWorkers(Stage.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+        }
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity the number of jobs that may wait in front of each
+     * stage, bounds the memory used by a batch
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queue capacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public BatchResultHandler getResultHandler() {
+        return resultHandler;
+    }
+
+    public void setResultHandler(BatchResultHandler resultHandler) {
+        this.resultHandler = resultHandler;
+    }
+
+    public NioHandshakeEngine getNioEngine() {
+        return nioEngine;
+    }
+
+    /**
+     * @param nioEngine if set, plain SSL/TLS targets are connected and
+     * handshaked on this engine instead of the connect and handshake worker
+     * threads; the handshake stage then only serves STARTTLS and proxied
+     * targets. The engine is not closed by this class.
+     */
+    public void setNioEngine(NioHandshakeEngine nioEngine) {
+        this.nioEngine = nioEngine;
+    }
+
+    /**
+     * Scans the targets read from a target list, one target per line, see
+     * {@link ScanTarget#parse(String)}. Lines that cannot be parsed are logged
+     * and skipped.
+     *
+     * @param reader the target list
+     * @return the counts of the batch
+     * @throws IOException if reading the target list fails
+     * @throws InterruptedException
+     */
+    public Summary run(Reader reader) throws IOException, InterruptedException {
+        final BufferedReader in = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        final IOException[] failure = new IOException[1];
+        Iterator<ScanTarget> targets = new Iterator<ScanTarget>() {
+            private ScanTarget next = advance();
+
+            private ScanTarget advance() {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        try {
+                            ScanTarget target = ScanTarget.parse(line);
+                            if (target != null) {
+                                return target;
+                            }
+                        } catch (IllegalArgumentException ex) {
+                            LOG.warn("skipping target: " + ex.getMessage());
+                        }
+                    }
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ScanTarget next() {
+                ScanTarget ret = next;
+                next = advance();
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        Summary summary = run(targets);
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return summary;
+    }
+
+    /**
+     * Scans the given targets. Blocks until every target has passed the
+     * persist stage.
+     *
+     * @param targets the targets, consumed lazily
+     * @return the counts of the batch
+     * @throws InterruptedException
+     */
+    public Summary run(Iterator<ScanTarget> targets) throws InterruptedException {
+        Pipeline pipeline = new Pipeline();
+        pipeline.start();
+
+        // feed the first stage, blocks while the pipeline is saturated
+        while (targets.hasNext()) {
+            pipeline.queues[0].put(new ScanJob(targets.next()));
+        }
+        for (int i = 0; i < workers.get(Stage.RESOLVE); i++) {
+            pipeline.queues[0].put(END);
+        }
+        pipeline.done.await();
+        LOG.info("batch done: " + pipeline.summary);
+        return pipeline.summary;
+    }
+
+    // -- class Pipeline -------------------------------------------------------
+    /**
+     * the queues and worker bookkeeping of a single run
+     */
+    private class Pipeline {
+
+        final Stage[] stages = Stage.values();
+        final Summary summary = new Summary();
+        final BlockingQueue<ScanJob>[] queues;
+        final AtomicInteger[] running = new AtomicInteger[stages.length];
+        final CountDownLatch done = new CountDownLatch(workers.get(Stage.PERSIST));
+        //handshakes handed to the NIO engine and not yet passed on
+        final AtomicInteger async = new AtomicInteger();
+        //jobs back from the NIO engine, passed on by the handoff thread
+        final BlockingQueue<ScanJob> handoffs = new LinkedBlockingQueue<ScanJob>();
+        //bounds the jobs in the engine or waiting for the handoff thread
+        final Semaphore asyncSlots = new Semaphore(queueCapacity);
+
+        @SuppressWarnings("unchecked")
+        Pipeline() {
+            queues = (BlockingQueue<ScanJob>[]) new BlockingQueue<?>[stages.length];
+            for (int i = 0; i < stages.length; i++) {
+                queues[i] = new ArrayBlockingQueue<ScanJob>(queueCapacity);
+                running[i] = new AtomicInteger(workers.get(stages[i]));
+            }
+        }
+
+        void start() {
+            int total = 0;
+            DaemonThreadFactory factory = new DaemonThreadFactory("installcert-batch");
+            for (final Stage stage : stages) {
+                total += workers.get(stage);
+                for (int i = 0; i < workers.get(stage); i++) {
+                    factory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                work(stage);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                if (stage == Stage.PERSIST) {
+                                    done.countDown();
+                                }
+                            }
+                        }
+                    }).start();
+                }
+            }
+            if (nioEngine != null) {
+                factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handOff();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }).start();
+            }
+            LOG.info("starting batch with " + total + " worker threads " + workers
+                    + (nioEngine != null ? " and the NIO handshake engine" : ""));
+        }
+
+        private void work(Stage stage) throws InterruptedException {
+            int idx = stage.ordinal();
+            BlockingQueue<ScanJob> in = queues[idx];
+            BlockingQueue<ScanJob> out = idx + 1 < queues.length ? queues[idx + 1] : null;
+            while (true) {
+                ScanJob job = in.take();
+                if (job == END) {
+                    // the last worker of a stage to finish shuts down the next one
+                    if (running[idx].decrementAndGet() == 0 && out != null) {
+                        if (stage == Stage.CONNECT && nioEngine != null) {
+                            awaitAsync();
+                            handoffs.put(END);
+                        }
+                        for (int i = 0; i < workers.get(stages[idx + 1]); i++) {
+                            out.put(END);
+                        }
+                    }
+                    return;
+                }
+                if (process(stage, job) && out != null) {
+                    out.put(job);
+                }
+            }
+        }
+
+        /**
+         * @return false if the job was handed off and must not be passed on
+         */
+        private boolean process(Stage stage, ScanJob job) throws InterruptedException {
+            ScanResult result = job.result;
+            if (result.isFailed() && stage != Stage.PERSIST) {
+                return true;
+            }
+            if (job.context != null && job.context.isFromCache()
+                    && (stage == Stage.CONNECT || stage == Stage.HANDSHAKE)) {
+                // the chain came from the cache, straight on to evaluation
+                return true;
+            }
+            try {
+                switch (stage) {
+                    case RESOLVE:
+                        job.context = installer.newScanContext();
+                        if (installer.replayCached(job.context, result.getTarget())) {
+                            break;
+                        }
+                        result.setAddress(installer.resolve(job.context, result.getTarget()));
+                        break;
+                    case CONNECT:
+                        if (nioEngine != null && result.getTarget().isDirectTls() && !job.context.isProxied()) {
+                            submitAsync(job);
+                            return false;
+                        }
+                        job.socket = installer.connect(job.context, result.getTarget(), result.getAddress());
+                        break;
+                    case HANDSHAKE:
+                        if (job.reconnect) {
+                            job.socket = installer.connect(job.context, result.getTarget(), result.getAddress());
+                        }
+                        Socket socket = job.socket;
+                        job.socket = null;
+                        installer.handshake(job.context, socket, result.getTarget());
+                        break;
+                    case EVALUATE:
+                        installer.evaluate(job.context, result);
+                        job.context = null;
+                        break;
+                    case PERSIST:
+                        summary.count(result);
+                        if (resultHandler != null) {
+                            resultHandler.handle(result);
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException(stage.toString());
+                }
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                if (stage == Stage.PERSIST) {
+                    LOG.warn("failed to handle result for " + result.getTarget() + ": " + ex.getMessage());
+                } else {
+                    result.setError(ex);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * connect and handshake in one go on the NIO engine. Jobs that could
+         * connect but did not yield a chain go to the blocking handshake
+         * stage, which knows about STARTTLS; everything else skips ahead to
+         * evaluation. The engine notifies on the threads that also run the
+         * delegated tasks of other handshakes, so the job is only queued for
+         * the handoff thread there; waiting for room downstream happens on
+         * the calling connect thread, before the job is submitted.
+         */
+        private void submitAsync(final ScanJob job) throws InterruptedException {
+            asyncSlots.acquire();
+            async.incrementAndGet();
+            try {
+                nioEngine.submit(job.context, job.result.getTarget(), job.result.getAddress(),
+                        new NioHandshakeEngine.Listener() {
+                    @Override
+                    public void completed(ScanContext context, ScanTarget target, Exception error, boolean connected) {
+                        if (error == null || context.isChainCaptured()) {
+                            job.next = Stage.EVALUATE;
+                        } else if (connected && !(error instanceof SocketTimeoutException)) {
+                            LOG.info("... " + target + " did not complete a TLS handshake (" + error
+                                    + "), retrying with STARTTLS detection ...");
+                            job.reconnect = true;
+                            job.next = Stage.HANDSHAKE;
+                        } else {
+                            job.result.setError(error);
+                            job.next = Stage.EVALUATE;
+                        }
+                        // unbounded, never blocks; asyncSlots bounds its size
+                        handoffs.add(job);
+                    }
+                });
+            } catch (InterruptedException ex) {
+                asyncDone();
+                throw ex;
+            } catch (RuntimeException ex) {
+                asyncDone();
+                throw ex;
+            }
+        }
+
+        /**
+         * passes the jobs back from the NIO engine on to their next stage,
+         * until the end marker
+         */
+        private void handOff() throws InterruptedException {
+            while (true) {
+                ScanJob job = handoffs.take();
+                if (job == END) {
+                    return;
+                }
+                try {
+                    queues[job.next.ordinal()].put(job);
+                } finally {
+                    asyncDone();
+                }
+            }
+        }
+
+        private void asyncDone() {
+            asyncSlots.release();
+            synchronized (async) {
+                async.decrementAndGet();
+                async.notifyAll();
+            }
+        }
+
+        private void awaitAsync() throws InterruptedException {
+            synchronized (async) {
+                while (async.get() > 0) {
+                    async.wait();
+                }
+            }
+        }
+    } // class Pipeline
+
+    // -- class ScanJob --------------------------------------------------------
+    /**
+     * the state of a single target while it moves through the pipeline
+     */
+    private static class ScanJob {
+
+        final ScanResult result;
+        ScanContext context;
+        Socket socket;
+        //set when the NIO engine hands the job back for a blocking retry
+        boolean reconnect;
+        //where the handoff thread passes a job from the NIO engine
+        Stage next;
+
+        ScanJob(ScanTarget target) {
+            this.result = target == null ? null : new ScanResult(target);
+        }
+    } // class ScanJob
+
+    // -- class Summary --------------------------------------------------------
+    /**
+     * running counts of a batch
+     */
+    public static class Summary {
+
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong trusted = new AtomicLong();
+        private final AtomicLong untrusted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        void count(ScanResult result) {
+            total.incrementAndGet();
+            if (result.isFailed()) {
+                failed.incrementAndGet();
+            } else if (result.getUntrustedCerts().isEmpty()) {
+                trusted.incrementAndGet();
+            } else {
+                untrusted.incrementAndGet();
+            }
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getTrusted() {
+            return trusted.get();
+        }
+
+        public long getUntrusted() {
+            return untrusted.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return total + " target(s), " + trusted + " trusted, " + untrusted + " untrusted, " + failed + " failed";
+        }
+    } // class Summary
+
+} // class BatchScanner
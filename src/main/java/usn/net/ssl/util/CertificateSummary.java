@@ -0,0 +1,303 @@
+package usn.net.ssl.util;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.naming.InvalidNameException;
+
+/**
+ * The facts about a certificate that are displayed and reported: names,
+ * validity, serial, fingerprints and key. Built once per certificate, see
+ * {@link #of(X509Certificate)}, and immutable.
+ */
+public final class CertificateSummary {
+
+    private static final int CACHE_SIZE = 4096;
+
+    // by SHA-256 fingerprint, least recently used first
+    private static final Map<String, CertificateSummary> CACHE
+            = new LinkedHashMap<String, CertificateSummary>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CertificateSummary> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String subject;
+    private final String commonName;
+    private final String issuer;
+    private final List<String> subjectAlternativeNames;
+    private final String notBefore;
+    private final String notAfter;
+    private final String serial;
+    private final String sha256;
+    private final String sha1;
+    private final String keyAlgorithm;
+    private final int keySize;
+    private final String signatureAlgorithm;
+
+    private CertificateSummary(X509Certificate cert, Fingerprints fingerprints) throws InvalidNameException {
+        subject = cert.getSubjectX500Principal().getName();
+        commonName = KeyStoreUtilities.getCommonName(cert);
+        issuer = cert.getIssuerX500Principal().getName();
+        subjectAlternativeNames = Collections.unmodifiableList(alternativeNames(cert));
+        notBefore = cert.getNotBefore().toInstant().toString();
+        notAfter = cert.getNotAfter().toInstant().toString();
+        serial = cert.getSerialNumber().toString(16).toUpperCase();
+        sha256 = fingerprints.getSha256();
+        byte[] legacy = fingerprints.getSha1Bytes();
+        sha1 = legacy == null ? null : Fingerprints.toHex(legacy);
+        PublicKey key = cert.getPublicKey();
+        keyAlgorithm = key.getAlgorithm();
+        keySize = keySize(key);
+        signatureAlgorithm = cert.getSigAlgName();
+    }
+
+    /**
+     * @param cert a certificate
+     * @return its summary, cached by fingerprint
+     * @throws CertificateEncodingException
+     * @throws InvalidNameException if the subject cannot be parsed
+     */
+    public static CertificateSummary of(X509Certificate cert)
+            throws CertificateEncodingException, InvalidNameException {
+        Fingerprints fingerprints = Fingerprints.of(cert);
+        synchronized (CACHE) {
+            CertificateSummary summary = CACHE.get(fingerprints.getSha256());
+            if (summary != null) {
+                return summary;
+            }
+        }
+        CertificateSummary summary = new CertificateSummary(cert, fingerprints);
+        synchronized (CACHE) {
+            CACHE.put(summary.sha256, summary);
+        }
+        return summary;
+    }
+
+    private static List<String> alternativeNames(X509Certificate cert) {
+        List<String> names = new ArrayList<String>();
+        Collection<List<?>> sans;
+        try {
+            sans = cert.getSubjectAlternativeNames();
+        } catch (CertificateParsingException ex) {
+            return names;
+        }
+        if (sans == null) {
+            return names;
+        }
+        for (List<?> san : sans) {
+            Object value = san.get(1);
+            if (!(value instanceof String)) {
+                continue;
+            }
+            switch ((Integer) san.get(0)) {
+                case 1:
+                    names.add("email:" + value);
+                    break;
+                case 2:
+                    names.add("DNS:" + value);
+                    break;
+                case 4:
+                    names.add("DirName:" + value);
+                    break;
+                case 6:
+                    names.add("URI:" + value);
+                    break;
+                case 7:
+                    names.add("IP:" + value);
+                    break;
+                case 8:
+                    names.add("RID:" + value);
+                    break;
+                default:
+                    names.add("other:" + value);
+            }
+        }
+        return names;
+    }
+
+    private static int keySize(PublicKey key) {
+        if (key instanceof RSAPublicKey) {
+            return ((RSAPublicKey) key).getModulus().bitLength();
+        }
+        if (key instanceof ECPublicKey) {
+            return ((ECPublicKey) key).getParams().getCurve().getField().getFieldSize();
+        }
+        if (key instanceof DSAPublicKey && ((DSAPublicKey) key).getParams() != null) {
+            BigInteger p = ((DSAPublicKey) key).getParams().getP();
+            return p.bitLength();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the subject as RFC 2253 distinguished name
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the last CN of the subject, empty if there is none
+     */
+    public String getCommonName() {
+        return commonName;
+    }
+
+    /**
+     * @return the issuer as RFC 2253 distinguished name
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * @return the subject alternative names as <code>type:value</code>, e.g.
+     * <code>DNS:example.com</code>
+     */
+    public List<String> getSubjectAlternativeNames() {
+        return subjectAlternativeNames;
+    }
+
+    /**
+     * @return the start of the validity as ISO-8601 instant
+     */
+    public String getNotBefore() {
+        return notBefore;
+    }
+
+    /**
+     * @return the end of the validity as ISO-8601 instant
+     */
+    public String getNotAfter() {
+        return notAfter;
+    }
+
+    /**
+     * @return the serial number in upper case hex
+     */
+    public String getSerial() {
+        return serial;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return the SHA-1 fingerprint, or <code>null</code> if not available
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return the key size in bits, -1 if unknown
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public boolean isSelfIssued() {
+        return subject.equals(issuer);
+    }
+
+    /**
+     * Appends this summary as a JSON object.
+     *
+     * @param json the target
+     */
+    public void appendJson(StringBuilder json) {
+        json.append("{\"subject\":");
+        appendString(json, subject);
+        json.append(",\"cn\":");
+        appendString(json, commonName);
+        json.append(",\"issuer\":");
+        appendString(json, issuer);
+        json.append(",\"san\":[");
+        for (int i = 0; i < subjectAlternativeNames.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendString(json, subjectAlternativeNames.get(i));
+        }
+        json.append("],\"notBefore\":");
+        appendString(json, notBefore);
+        json.append(",\"notAfter\":");
+        appendString(json, notAfter);
+        json.append(",\"serial\":");
+        appendString(json, serial);
+        json.append(",\"sha256\":");
+        appendString(json, sha256);
+        json.append(",\"sha1\":");
+        appendString(json, sha1);
+        json.append(",\"keyAlgorithm\":");
+        appendString(json, keyAlgorithm);
+        json.append(",\"keySize\":").append(keySize);
+        json.append(",\"signatureAlgorithm\":");
+        appendString(json, signatureAlgorithm);
+        json.append(",\"selfIssued\":").append(isSelfIssued());
+        json.append('}');
+    } // appendJson
+
+    /**
+     * Appends a JSON string literal, or <code>null</code>.
+     *
+     * @param json the target
+     * @param value the string, may be <code>null</code>
+     */
+    static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    } // appendString
+} // class CertificateSummary
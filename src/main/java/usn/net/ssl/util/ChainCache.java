@@ -0,0 +1,300 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the chains servers presented for a limited time, so that repeated
+ * scans of the same endpoint do not connect again, see
+ * {@link InstallCert#setChainCache(ChainCache)}. Entries are keyed by host,
+ * port, SNI name and protocol, expire after a fixed time to live, and the
+ * least recently used ones are evicted beyond a maximum size.
+ * <p>
+ * Along with a chain, the trust verdict of the scan is kept together with the
+ * state of the trust stores it was reached with. Once the trust stores of the
+ * {@link InstallCert} change, a cached chain is validated again, locally.
+ * <p>
+ * With a file, the chains are loaded from it when the cache is created and
+ * written back by {@link #save()}, so that they outlive the process. The
+ * verdicts are not written; chains from the file are always validated again.
+ * Instances are thread safe.
+ */
+public class ChainCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChainCache.class);
+    private static final int MAGIC = 0x49434343; // ICCC
+    private static final int VERSION = 1;
+
+    private final long ttl;
+    private final int maxEntries;
+    private final File file;
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param ttl how long a chain is used, in milliseconds
+     * @param maxEntries the number of endpoints to remember at most
+     * @param file where the chains are kept between runs, or
+     * <code>null</code> for memory only
+     */
+    public ChainCache(long ttl, final int maxEntries, File file) {
+        if (ttl < 1 || maxEntries < 1) {
+            throw new IllegalArgumentException("time to live and size must be positive");
+        }
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.file = file;
+        this.entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (file != null) {
+            load();
+        }
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the file the chains are kept in, or <code>null</code>
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param host the host name
+     * @param port the port
+     * @param sni the server name sent in the handshake, may be
+     * <code>null</code>
+     * @param protocol the STARTTLS protocol, <code>null</code> for SSL/TLS
+     * right away
+     * @return the key of the endpoint
+     */
+    public static String key(String host, int port, String sni, String protocol) {
+        return host.toLowerCase() + ":" + port + " " + (sni == null ? "" : sni.toLowerCase())
+                + " " + (protocol == null ? "" : protocol);
+    }
+
+    /**
+     * @param key see {@link #key(String, int, String, String)}
+     * @return the entry, or <code>null</code> if there is none or it expired
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry)) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param key see {@link #key(String, int, String, String)}
+     * @param entry the chain and verdict of the endpoint
+     */
+    public synchronized void put(String key, Entry entry) {
+        if (!isExpired(entry)) {
+            entries.put(key, entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.capturedAt >= ttl;
+    }
+
+    /**
+     * Writes the chains that have not expired to the file, replacing it.
+     * Does nothing for a cache in memory.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final List<Map.Entry<String, Entry>> current;
+        synchronized (this) {
+            current = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        try {
+            AtomicFile.write(file.toPath(), false, new AtomicFile.Content() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException, GeneralSecurityException {
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    int count = 0;
+                    for (Map.Entry<String, Entry> e : current) {
+                        if (!isExpired(e.getValue())) {
+                            count++;
+                        }
+                    }
+                    out.writeInt(count);
+                    for (Map.Entry<String, Entry> e : current) {
+                        Entry entry = e.getValue();
+                        if (isExpired(entry)) {
+                            continue;
+                        }
+                        out.writeUTF(e.getKey());
+                        out.writeLong(entry.capturedAt);
+                        out.writeUTF(entry.authType);
+                        out.writeInt(entry.chain.length);
+                        for (X509Certificate cert : entry.chain) {
+                            byte[] der = cert.getEncoded();
+                            out.writeInt(der.length);
+                            out.write(der);
+                        }
+                    }
+                }
+            });
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("cannot encode a cached chain", ex);
+        }
+    } // save
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info("ignoring result cache " + file + " of another version");
+                return;
+            }
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long capturedAt = in.readLong();
+                String authType = in.readUTF();
+                X509Certificate[] chain = new X509Certificate[in.readInt()];
+                for (int j = 0; j < chain.length; j++) {
+                    byte[] der = new byte[in.readInt()];
+                    in.readFully(der);
+                    chain[j] = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der));
+                }
+                put(key, new Entry(chain, authType, capturedAt));
+            }
+            LOG.info("... " + size() + " chain(s) from result cache " + file + " ...");
+        } catch (Exception ex) {
+            LOG.info("ignoring unreadable result cache " + file + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // nothing was written
+                }
+            }
+        }
+    } // load
+
+    // -- class Entry ----------------------------------------------------------
+    /**
+     * a captured chain and, if known, the verdict on it
+     */
+    public static final class Entry {
+
+        private final X509Certificate[] chain;
+        private final String authType;
+        private final long capturedAt;
+        private final boolean trusted;
+        private final Set<X509Certificate> untrusted;
+        // the trust store state the verdict was reached with, -1 for none
+        private final int trustGeneration;
+
+        /**
+         * an entry without verdict
+         */
+        Entry(X509Certificate[] chain, String authType, long capturedAt) {
+            this(chain, authType, capturedAt, false, Collections.<X509Certificate>emptySet(), -1);
+        }
+
+        Entry(X509Certificate[] chain, String authType, long capturedAt, boolean trusted,
+                Collection<X509Certificate> untrusted, int trustGeneration) {
+            this.chain = chain.clone();
+            this.authType = authType == null ? "UNKNOWN" : authType;
+            this.capturedAt = capturedAt;
+            this.trusted = trusted;
+            this.untrusted = Collections.unmodifiableSet(new HashSet<X509Certificate>(untrusted));
+            this.trustGeneration = trustGeneration;
+        }
+
+        /**
+         * @return the chain as the server presented it
+         */
+        public X509Certificate[] getChain() {
+            return chain.clone();
+        }
+
+        /**
+         * @return the key exchange the chain was validated for
+         */
+        public String getAuthType() {
+            return authType;
+        }
+
+        /**
+         * @return when the chain was captured, in milliseconds since the epoch
+         */
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+
+        public boolean isTrusted() {
+            return trusted;
+        }
+
+        /**
+         * @return the certificates the scan found unknown
+         */
+        public Set<X509Certificate> getUntrusted() {
+            return untrusted;
+        }
+
+        int getTrustGeneration() {
+            return trustGeneration;
+        }
+    } // class Entry
+
+} // class ChainCache
@@ -0,0 +1,48 @@
+package usn.net.ssl.util;
+
+import java.security.cert.CertificateException;
+
+/**
+ * Thrown by the {@link InstallCert.SavingTrustManager} in capture-only mode
+ * once the server certificate chain is recorded, so that the handshake is
+ * aborted right after the Certificate message instead of being completed.
+ * Reaching the caller wrapped in an
+ * {@link javax.net.ssl.SSLHandshakeException}, this is the expected outcome
+ * of a capture-only scan, not an error.
+ */
+public class ChainCapturedException extends CertificateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean trusted;
+
+    /**
+     * @param trusted whether the chain validated against the trust stores
+     * @param cause the validation failure of an untrusted chain, may be
+     * <code>null</code>
+     */
+    public ChainCapturedException(boolean trusted, Throwable cause) {
+        super("certificate chain captured, handshake aborted ("
+                + (trusted ? "trusted" : "untrusted") + ")", cause);
+        this.trusted = trusted;
+    }
+
+    public boolean isTrusted() {
+        return trusted;
+    }
+
+    /**
+     * @param t any exception
+     * @return true if <code>t</code> or one of its causes is a
+     * {@link ChainCapturedException}
+     */
+    public static boolean isCause(Throwable t) {
+        while (t != null) {
+            if (t instanceof ChainCapturedException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+} // class ChainCapturedException
@@ -0,0 +1,149 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.CertPathTrustManagerParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link X509TrustManager} that trusts the union of several trust stores.
+ * <p>
+ * A {@link TrustManagerFactory} only ever validates against the store it was
+ * last initialized with. This class instead collects the trust anchors of all
+ * stores into one deduplicated set and hands that to a single PKIX trust
+ * manager, so a chain costs one path build no matter how many stores are
+ * configured. Anchors are taken from the {@link TrustStoreIndex} of each store,
+ * and a certificate shared by several stores is parsed only once. Instances
+ * are immutable and thread safe; build one whenever the set of stores changes
+ * and share it between scans.
+ */
+public class CompositeTrustManager implements X509TrustManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompositeTrustManager.class);
+
+    private final X509TrustManager delegate;
+    private final int anchorCount;
+
+    /**
+     * @param includeDefault whether to include the anchors of the JRE default
+     * trust manager factory
+     * @param stores the indexes of further trust stores, may be empty
+     * @throws GeneralSecurityException
+     */
+    public CompositeTrustManager(boolean includeDefault, Collection<TrustStoreIndex> stores)
+            throws GeneralSecurityException {
+        // by fingerprint, the same root ships in every JRE store
+        Map<String, TrustAnchor> anchors = new LinkedHashMap<String, TrustAnchor>();
+        if (includeDefault) {
+            TrustManagerFactory tmf
+                    = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+            for (TrustManager tm : tmf.getTrustManagers()) {
+                if (tm instanceof X509TrustManager) {
+                    for (X509Certificate cert : ((X509TrustManager) tm).getAcceptedIssuers()) {
+                        addAnchor(anchors, cert);
+                    }
+                }
+            }
+        }
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        for (TrustStoreIndex store : stores) {
+            addAnchors(anchors, factory, store);
+        }
+        this.anchorCount = anchors.size();
+        if (anchors.isEmpty()) {
+            LOG.info("no trust anchors configured, nothing will be trusted");
+            this.delegate = null;
+            return;
+        }
+        PKIXBuilderParameters params = new PKIXBuilderParameters(
+                new HashSet<TrustAnchor>(anchors.values()), new X509CertSelector());
+        params.setRevocationEnabled(false);
+        TrustManagerFactory pkix = TrustManagerFactory.getInstance("PKIX");
+        pkix.init(new CertPathTrustManagerParameters(params));
+        X509TrustManager found = null;
+        for (TrustManager tm : pkix.getTrustManagers()) {
+            if (tm instanceof X509TrustManager) {
+                found = (X509TrustManager) tm;
+                break;
+            }
+        }
+        if (found == null) {
+            throw new KeyStoreException("no X509TrustManager available for PKIX");
+        }
+        this.delegate = found;
+    }
+
+    private static void addAnchors(Map<String, TrustAnchor> anchors, CertificateFactory factory,
+            TrustStoreIndex store) {
+        for (String fingerprint : store.getFingerprints()) {
+            // only parse what no other store contributed yet
+            if (anchors.containsKey(fingerprint)) {
+                continue;
+            }
+            try {
+                X509Certificate cert = (X509Certificate) factory.generateCertificate(
+                        new ByteArrayInputStream(store.getEncoded(fingerprint)));
+                anchors.put(fingerprint, new TrustAnchor(cert, null));
+            } catch (CertificateException ex) {
+                LOG.info("skipping unreadable trust anchor " + fingerprint + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private static void addAnchor(Map<String, TrustAnchor> anchors, X509Certificate cert) {
+        try {
+            String fingerprint = TrustStoreIndex.fingerprint(cert);
+            if (!anchors.containsKey(fingerprint)) {
+                anchors.put(fingerprint, new TrustAnchor(cert, null));
+            }
+        } catch (CertificateEncodingException ex) {
+            LOG.info("skipping unreadable trust anchor " + cert.getSubjectX500Principal() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of distinct trust anchors
+     */
+    public int getAnchorCount() {
+        return anchorCount;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        if (delegate == null) {
+            throw new CertificateException("no trust anchors configured");
+        }
+        delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        if (delegate == null) {
+            throw new CertificateException("no trust anchors configured");
+        }
+        delegate.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate == null ? new X509Certificate[0] : delegate.getAcceptedIssuers();
+    }
+}
@@ -0,0 +1,28 @@
+package usn.net.ssl.util;
+
+import java.net.Socket;
+
+/**
+ * A {@link StarttlsHandler} that can also pick up a connection on which the
+ * server greeting was already read by the {@link ProtocolSniffer}, saving a
+ * second connection to the server.
+ */
+public interface ConnectedStarttlsHandler extends StarttlsHandler {
+
+    /**
+     * Do the application protocol specific actions to initiate a STARTTLS
+     * session on an established connection. The handler owns the socket and
+     * must close it.
+     *
+     * @param context the scan to report the certificates to
+     * @param host the host name, for SNI and the protocol dialog
+     * @param port the port the socket is connected to
+     * @param socket the connected socket
+     * @param greeting the first line of the server greeting, already consumed
+     * @return <code>true</code> if getting a certificate via STARTTLS is
+     * believed to be successful, <code>false</code> otherwise
+     * @throws java.lang.Exception
+     */
+    boolean runConnected(ScanContext context, String host, int port, Socket socket,
+            ProtocolSniffer.Greeting greeting) throws Exception;
+} // interface ConnectedStarttlsHandler
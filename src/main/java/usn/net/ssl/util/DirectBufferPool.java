@@ -0,0 +1,60 @@
+package usn.net.ssl.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct byte buffers. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so handshakes that
+ * come and go by the thousand borrow them from here instead.
+ */
+class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity of every buffer
+     * @param maxRetained upper bound of idle buffers kept for reuse
+     */
+    DirectBufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        retained.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param buffer a buffer obtained from {@link #acquire()}, may be
+     * <code>null</code>
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (retained.incrementAndGet() > maxRetained) {
+            retained.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+}
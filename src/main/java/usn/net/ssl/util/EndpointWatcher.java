@@ -0,0 +1,322 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps scanning a set of endpoints on one long lived {@link InstallCert}, so
+ * that trust stores, their indexes and the trust manager stay loaded between
+ * rounds. Every endpoint is scanned once per interval, at a random offset and
+ * with a random jitter, which spreads the handshakes over the interval instead
+ * of running them all at once.
+ * <p>
+ * The watcher remembers a fingerprint of every chain. When it changes, e.g.
+ * because a server rotated its certificate, the result goes to the
+ * {@link BatchResultHandler} and the untrusted certificates of the new chain
+ * are imported as far as the {@link Policy} allows. A chain that did not
+ * change costs the handshake only.
+ */
+public class EndpointWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointWatcher.class);
+
+    /**
+     * which untrusted certificates of a changed chain are imported
+     */
+    public enum Policy {
+        /**
+         * none, changes are only reported
+         */
+        NONE,
+        /**
+         * CA certificates only, i.e. roots and intermediates
+         */
+        CA,
+        /**
+         * every untrusted certificate, server certificates included
+         */
+        ALL;
+
+        /**
+         * @param untrusted the untrusted certificates of a chain
+         * @return those to import
+         */
+        public Set<X509Certificate> select(Set<X509Certificate> untrusted) {
+            Set<X509Certificate> selected = new LinkedHashSet<X509Certificate>();
+            for (X509Certificate cert : untrusted) {
+                if (this == ALL || this == CA && cert.getBasicConstraints() >= 0) {
+                    selected.add(cert);
+                }
+            }
+            return selected;
+        }
+    } // enum Policy
+
+    // the state of a target whose last scan failed
+    private static final String FAILED = "failed";
+
+    private final InstallCert installer;
+    private final long interval;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<ScanTarget, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<ScanTarget, ScheduledFuture<?>>();
+    private final Map<ScanTarget, String> states = new ConcurrentHashMap<ScanTarget, String>();
+    private double jitter = 0.1;
+    private Policy policy = Policy.NONE;
+    private BatchResultHandler resultHandler;
+
+    /**
+     * @param installer the scanner and the trust stores to import into
+     * @param interval the time between two scans of the same endpoint, in
+     * milliseconds
+     * @param threads the number of scans that may run at the same time
+     */
+    public EndpointWatcher(InstallCert installer, long interval, int threads) {
+        if (installer == null) {
+            throw new IllegalArgumentException("installer cannot be null");
+        }
+        if (interval < 1 || threads < 1) {
+            throw new IllegalArgumentException("interval and threads must be positive");
+        }
+        this.installer = installer;
+        this.interval = interval;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory("installcert-watch"));
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter how far a scan may move from its interval, as a fraction
+     * of the interval between 0 and 1. Defaults to 0.1.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy == null ? Policy.NONE : policy;
+    }
+
+    public BatchResultHandler getResultHandler() {
+        return resultHandler;
+    }
+
+    /**
+     * @param resultHandler receives the first result of every endpoint and
+     * every result that differs from the one before: another chain, or a
+     * failure after a success and vice versa
+     */
+    public void setResultHandler(BatchResultHandler resultHandler) {
+        this.resultHandler = resultHandler;
+    }
+
+    /**
+     * Makes the given targets the watched ones. New targets are scheduled at
+     * a random point of the first interval, targets no longer listed stop
+     * being scanned, and the others keep their schedule and state.
+     *
+     * @param targets the inventory
+     */
+    public synchronized void setTargets(Collection<ScanTarget> targets) {
+        Set<ScanTarget> wanted = new HashSet<ScanTarget>(targets);
+        for (ScanTarget target : new ArrayList<ScanTarget>(scheduled.keySet())) {
+            if (!wanted.contains(target)) {
+                scheduled.remove(target).cancel(false);
+                states.remove(target);
+                LOG.info("no longer watching " + target);
+            }
+        }
+        for (ScanTarget target : wanted) {
+            if (!scheduled.containsKey(target)) {
+                schedule(target, ThreadLocalRandom.current().nextLong(interval));
+            }
+        }
+        LOG.info("watching " + scheduled.size() + " endpoint(s) every " + interval + " ms");
+    }
+
+    private void schedule(final ScanTarget target, long delay) {
+        scheduled.put(target, executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check(target);
+                } catch (RuntimeException ex) {
+                    LOG.warn("failed to check " + target + ": " + ex.getMessage());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(ex.getMessage(), ex);
+                    }
+                }
+                synchronized (EndpointWatcher.this) {
+                    // unless the target was dropped meanwhile
+                    if (scheduled.containsKey(target) && !executor.isShutdown()) {
+                        schedule(target, nextDelay());
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    private long nextDelay() {
+        double offset = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.round(interval * (1 + offset)));
+    }
+
+    /**
+     * Scans a target once and handles a change of its chain.
+     *
+     * @param target the target
+     * @return the result, never <code>null</code>
+     */
+    ScanResult check(ScanTarget target) {
+        ScanResult result = installer.scan(target);
+        String state = result.isFailed() ? FAILED : chainFingerprint(result.getChain());
+        String previous = states.get(target);
+        if (state.equals(previous)) {
+            return result;
+        }
+        if (result.isFailed()) {
+            LOG.info(target + " failed: " + result.getError());
+        } else if (previous == null || FAILED.equals(previous)) {
+            LOG.info(target + " presents chain " + state);
+        } else {
+            LOG.info(target + " changed its chain from " + previous + " to " + state);
+        }
+        if (!result.isFailed() && !apply(result)) {
+            // try again next time
+            return result;
+        }
+        states.put(target, state);
+        if (resultHandler != null) {
+            try {
+                resultHandler.handle(result);
+            } catch (Exception ex) {
+                LOG.warn("failed to handle result for " + target + ": " + ex.getMessage());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+        }
+        return result;
+    } // check
+
+    /**
+     * imports what the policy selects from the untrusted certificates
+     *
+     * @return false if the import failed
+     */
+    private boolean apply(ScanResult result) {
+        Set<X509Certificate> untrusted = result.getUntrustedCerts();
+        Set<X509Certificate> selected = policy.select(untrusted);
+        if (untrusted.size() > selected.size()) {
+            LOG.info((untrusted.size() - selected.size()) + " untrusted certificate(s) of "
+                    + result.getTarget() + " not imported due to policy " + policy);
+        }
+        if (selected.isEmpty()) {
+            return true;
+        }
+        try {
+            TrustStoreTransaction transaction = installer.beginTransaction();
+            transaction.add(selected, result.getTarget().getHost());
+            LOG.info("Importing " + transaction.size() + " certificate(s) of " + result.getTarget());
+            transaction.commit();
+            return true;
+        } catch (Exception ex) {
+            LOG.warn("failed to import the certificates of " + result.getTarget() + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+            return false;
+        }
+    } // apply
+
+    /**
+     * @param chain a certificate chain
+     * @return the upper case hex SHA-256 of the fingerprints of all
+     * certificates in order
+     */
+    static String chainFingerprint(X509Certificate[] chain) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (X509Certificate cert : chain) {
+                digest.update(Fingerprints.of(cert).getSha256Bytes());
+            }
+            return Fingerprints.toHex(digest.digest());
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return the number of watched endpoints
+     */
+    public int size() {
+        return scheduled.size();
+    }
+
+    /**
+     * Stops all scans. Scans that are running finish first.
+     */
+    public synchronized void close() {
+        executor.shutdown();
+        scheduled.clear();
+    }
+
+    /**
+     * Reads an inventory, one target per line, see
+     * {@link ScanTarget#parse(String)}. Lines that cannot be parsed are
+     * logged and skipped.
+     *
+     * @param file the inventory
+     * @return the targets in file order, without duplicates
+     * @throws IOException
+     */
+    public static List<ScanTarget> readTargets(File file) throws IOException {
+        Set<ScanTarget> targets = new LinkedHashSet<ScanTarget>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    ScanTarget target = ScanTarget.parse(line);
+                    if (target != null) {
+                        targets.add(target);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    LOG.warn("skipping target: " + ex.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new ArrayList<ScanTarget>(targets);
+    }
+} // class EndpointWatcher
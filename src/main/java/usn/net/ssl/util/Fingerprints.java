@@ -0,0 +1,127 @@
+package usn.net.ssl.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The SHA-256, SHA-1 and MD5 fingerprints of a certificate, all computed from
+ * a single encoding.
+ * <p>
+ * {@link #of(X509Certificate)} caches the fingerprints for as long as the
+ * certificate is referenced elsewhere, so display, deduplication and index
+ * lookups of the same certificate hash it only once. The digests are kept per
+ * thread, and hex encoding is table based. SHA-1 and MD5 are only for
+ * display; they are <code>null</code> on platforms that do not offer them.
+ */
+public final class Fingerprints {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final String[] ALGORITHMS = {"SHA-256", "SHA-1", "MD5"};
+
+    private static final ThreadLocal<MessageDigest[]> DIGESTS = new ThreadLocal<MessageDigest[]>() {
+        @Override
+        protected MessageDigest[] initialValue() {
+            MessageDigest[] digests = new MessageDigest[ALGORITHMS.length];
+            for (int i = 0; i < ALGORITHMS.length; i++) {
+                try {
+                    digests[i] = MessageDigest.getInstance(ALGORITHMS[i]);
+                } catch (NoSuchAlgorithmException ex) {
+                    // every Java platform has SHA-256, the legacy ones may be disabled
+                    if (i == 0) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+            return digests;
+        }
+    };
+
+    private static final Map<X509Certificate, Fingerprints> CACHE
+            = Collections.synchronizedMap(new WeakHashMap<X509Certificate, Fingerprints>());
+
+    private final byte[] sha256;
+    private final byte[] sha1;
+    private final byte[] md5;
+    private final String sha256Hex;
+
+    private Fingerprints(byte[] der) {
+        MessageDigest[] digests = DIGESTS.get();
+        sha256 = digests[0].digest(der);
+        sha1 = digests[1] == null ? null : digests[1].digest(der);
+        md5 = digests[2] == null ? null : digests[2].digest(der);
+        sha256Hex = toHex(sha256);
+    }
+
+    /**
+     * @param cert a certificate
+     * @return its fingerprints, cached
+     * @throws CertificateEncodingException
+     */
+    public static Fingerprints of(X509Certificate cert) throws CertificateEncodingException {
+        Fingerprints fingerprints = CACHE.get(cert);
+        if (fingerprints == null) {
+            fingerprints = new Fingerprints(cert.getEncoded());
+            CACHE.put(cert, fingerprints);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @param der a DER encoded certificate
+     * @return its fingerprints, not cached
+     */
+    public static Fingerprints of(byte[] der) {
+        return new Fingerprints(der);
+    }
+
+    /**
+     * @return the upper case hex SHA-256 fingerprint
+     */
+    public String getSha256() {
+        return sha256Hex;
+    }
+
+    public byte[] getSha256Bytes() {
+        return sha256.clone();
+    }
+
+    /**
+     * @return the SHA-1 fingerprint, or <code>null</code> if not available
+     */
+    public byte[] getSha1Bytes() {
+        return sha1 == null ? null : sha1.clone();
+    }
+
+    /**
+     * @return the MD5 fingerprint, or <code>null</code> if not available
+     */
+    public byte[] getMd5Bytes() {
+        return md5 == null ? null : md5.clone();
+    }
+
+    /**
+     * @param data any data
+     * @return its SHA-256 digest, from this thread's digest
+     */
+    public static byte[] sha256(byte[] data) {
+        return DIGESTS.get()[0].digest(data);
+    }
+
+    /**
+     * @param bytes any bytes
+     * @return upper case hex, two characters per byte
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+} // class Fingerprints
@@ -0,0 +1,114 @@
+package usn.net.ssl.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for handshakes, STARTTLS handler runs and
+ * trust store loads and writes, so that installcert shows up in a recording
+ * of the application that embeds it.
+ * <p>
+ * The events are defined in {@link FlightEventsJfr}, which is only loaded when
+ * the running JVM has the <code>jdk.jfr</code> API (Java 11, or Java 8 from
+ * update 262); elsewhere all methods do nothing. A <code>begin</code> method
+ * returns <code>null</code> unless its event type is enabled in a running
+ * recording, and callers skip gathering the event fields in that case, so a
+ * disabled event costs a single check.
+ */
+abstract class FlightEvents {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlightEvents.class);
+
+    private static final FlightEvents INSTANCE = load();
+
+    static FlightEvents get() {
+        return INSTANCE;
+    }
+
+    private static FlightEvents load() {
+        try {
+            // avoid static linking to jdk.jfr, which older JVMs do not have
+            Class.forName("jdk.jfr.Event");
+            return (FlightEvents) Class.forName("usn.net.ssl.util.FlightEventsJfr").getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("no flight recorder events: " + ex, ex);
+            }
+        } catch (LinkageError ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("no flight recorder events: " + ex, ex);
+            }
+        }
+        return new FlightEvents() {
+        };
+    }
+
+    /**
+     * @return a started handshake event, or <code>null</code> if it is not
+     * recorded
+     */
+    Object beginHandshake() {
+        return null;
+    }
+
+    /**
+     * @param event from {@link #beginHandshake()}, not <code>null</code>
+     * @param host the target host
+     * @param port the target port
+     * @param protocol the protocol of the target, <code>tls</code> for
+     * SSL/TLS right away
+     * @param outcome see {@link #outcome(ScanContext, boolean)}
+     */
+    void endHandshake(Object event, String host, int port, String protocol, String outcome) {
+    }
+
+    /**
+     * @return a started STARTTLS event, or <code>null</code> if it is not
+     * recorded
+     */
+    Object beginStarttls() {
+        return null;
+    }
+
+    /**
+     * @param event from {@link #beginStarttls()}, not <code>null</code>
+     * @param host the target host
+     * @param port the target port
+     * @param handler the simple class name of the handler
+     * @param success whether the handler obtained a chain
+     */
+    void endStarttls(Object event, String host, int port, String handler, boolean success) {
+    }
+
+    /**
+     * @return a started trust store event, or <code>null</code> if it is not
+     * recorded
+     */
+    Object beginTrustStore() {
+        return null;
+    }
+
+    /**
+     * @param event from {@link #beginTrustStore()}, not <code>null</code>
+     * @param operation <code>load</code> or <code>write</code>
+     * @param path the trust store file
+     * @param entries the number of entries, -1 if unknown
+     * @param bytes the size of the file, -1 if unknown
+     * @param success whether the operation completed
+     */
+    void endTrustStore(Object event, String operation, String path, int entries, long bytes, boolean success) {
+    }
+
+    /**
+     * @param context a scan after its handshake
+     * @param failed whether the handshake threw
+     * @return <code>trusted</code>, <code>untrusted</code>,
+     * <code>no chain</code> or <code>error</code>
+     */
+    static String outcome(ScanContext context, boolean failed) {
+        if (!context.isChainCaptured()) {
+            return failed ? "error" : "no chain";
+        }
+        return context.isChainTrusted() ? "trusted" : "untrusted";
+    }
+} // class FlightEvents
@@ -0,0 +1,137 @@
+package usn.net.ssl.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The flight recorder events, only loaded through {@link FlightEvents} on
+ * JVMs that have <code>jdk.jfr</code>. All events are in the
+ * <code>InstallCert</code> category and have a duration.
+ */
+final class FlightEventsJfr extends FlightEvents {
+
+    @Name("usn.installcert.Handshake")
+    @Label("TLS Handshake")
+    @Category("InstallCert")
+    @Description("An attempt to obtain the certificate chain of a server, including any STARTTLS fallback")
+    static class HandshakeEvent extends Event {
+
+        @Label("Host")
+        String host;
+        @Label("Port")
+        int port;
+        @Label("Protocol")
+        String protocol;
+        @Label("Outcome")
+        String outcome;
+    } // class HandshakeEvent
+
+    @Name("usn.installcert.Starttls")
+    @Label("STARTTLS Handler")
+    @Category("InstallCert")
+    @Description("A run of a STARTTLS protocol handler")
+    static class StarttlsEvent extends Event {
+
+        @Label("Host")
+        String host;
+        @Label("Port")
+        int port;
+        @Label("Handler")
+        String handler;
+        @Label("Success")
+        boolean success;
+    } // class StarttlsEvent
+
+    @Name("usn.installcert.TrustStore")
+    @Label("Trust Store I/O")
+    @Category("InstallCert")
+    @Description("A trust store loaded from or written to disk")
+    static class TrustStoreEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+        @Label("Path")
+        String path;
+        @Label("Entries")
+        int entries;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Success")
+        boolean success;
+    } // class TrustStoreEvent
+
+    @Override
+    Object beginHandshake() {
+        HandshakeEvent event = new HandshakeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endHandshake(Object started, String host, int port, String protocol, String outcome) {
+        HandshakeEvent event = (HandshakeEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.port = port;
+            event.protocol = protocol;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object beginStarttls() {
+        StarttlsEvent event = new StarttlsEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endStarttls(Object started, String host, int port, String handler, boolean success) {
+        StarttlsEvent event = (StarttlsEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.port = port;
+            event.handler = handler;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object beginTrustStore() {
+        TrustStoreEvent event = new TrustStoreEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endTrustStore(Object started, String operation, String path, int entries, long bytes, boolean success) {
+        TrustStoreEvent event = (TrustStoreEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.path = path;
+            event.entries = entries;
+            event.bytes = bytes;
+            event.success = success;
+            event.commit();
+        }
+    }
+} // class FlightEventsJfr
@@ -32,15 +32,20 @@ package usn.net.ssl.util;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -48,10 +53,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -59,7 +69,6 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -142,10 +151,17 @@ public class InstallCert {
     private static final Logger LOG = LoggerFactory.getLogger(InstallCert.class.getName());
     public static final char[] DEFAULT = "changeit".toCharArray();
 
-    //this is also the only variable that prevents this class from being thread safe.
-    // this one is needed here to allow being shared with embedded classes
-    private static SSLContext context;
+    /**
+     * @deprecated shared between threads and therefore unsafe, use
+     * {@link Fingerprints} instead
+     */
+    @Deprecated
     public static MessageDigest sha1 = null;
+    /**
+     * @deprecated shared between threads and therefore unsafe, use
+     * {@link Fingerprints} instead
+     */
+    @Deprecated
     public static MessageDigest md5 = null;
 
     static {
@@ -170,18 +186,18 @@ public class InstallCert {
             int i = 0;
             while (file.exists()) {
                 file = new File(alias + "-" + i + ".crt");
+                i++;
             }
             FileWriter fw = new FileWriter(file);
-            fw.write(KeyStoreUtilities.certToString(cert));
-            fw.close();
+            try {
+                PemEncoder.write(cert.getEncoded(), fw);
+            } finally {
+                fw.close();
+            }
             LOG.info("Cert saved to: " + file.getAbsolutePath());
         }
     }
 
-    public static SSLContext getContext() {
-        return context;
-    }
-
     /**
      * Run the program from command line.
      *
@@ -201,8 +217,13 @@ public class InstallCert {
         opts.addOption("passwordExtra", true, "if specified, password for the extra trust store");
         opts.addOption("noimport", false, "if specified, no changes will be made to trust stores");
         opts.addOption("file", false, "if specified, untrusted certificates will be stored to individial .crt files");
+        opts.addOption("bundle", true, "write the untrusted certificates to this PEM bundle file, or one .pem file per certificate to this directory");
+        opts.addOption("bundleAll", false, "batch mode with -bundle: write the complete chains of all hosts, trusted or not");
+        opts.addOption("report", true, "batch mode: write one JSON record per host to this file, - for stdout instead of the result lines");
         opts.addOption("danger", false, "don't prompt for confirmation, all certificates returned will be auto trusted");
         opts.addOption("skipDisco", false, "skip automatic JRE trust store detection");
+        opts.addOption("discoveryRoot", true, "search this directory for JRE trust stores instead of the default locations, may be repeated or list several directories separated by " + File.pathSeparator);
+        opts.addOption("noCache", false, "always parse discovered trust stores instead of using the index cache in ~/.installcert/cache");
         opts.addOption("connectTimeout", true, "Time in millsecinds for connection attempts. Default is 10 seconds");
         opts.addOption("overallTimeout", true, "Time in millsecinds for a connection attempt for specific use cases. Default is 15 seconds");
         /*
@@ -210,23 +231,34 @@ public class InstallCert {
         * updated does not
          */
         opts.addOption("exclude", false, "Exclues trustworthiness from all trust stores");
+        opts.addOption("batch", true, "a file with one host:port [protocol] per line to scan concurrently, - for stdin. Nothing is imported unless -danger is given");
+        opts.addOption("workers", true, "batch mode worker threads per stage, i.e. resolve=8,connect=32,handshake=32,evaluate=2,persist=1");
+        opts.addOption("queueSize", true, "batch mode jobs that may wait in front of each stage. Default is 256");
+        opts.addOption("sniffTimeout", true, "Time in milliseconds to wait for a server greeting (SMTP, POP3, IMAP) before trying SSL/TLS, 0 to disable. Default is 1 second");
+        opts.addOption("captureOnly", false, "abort every handshake once the server certificates are received, trusted or not");
+        opts.addOption("nio", true, "batch mode: run plain SSL/TLS handshakes non-blocking on this many selector threads");
+        opts.addOption("maxInFlight", true, "batch mode with -nio: maximum concurrent handshakes. Default is 1024");
+        opts.addOption("watch", true, "with -batch: keep running and scan every endpoint about every this many seconds, importing into the trust stores when a chain changes; the file is read again when it changes");
+        opts.addOption("policy", true, "with -watch: which untrusted certificates of a changed chain to import, none, ca (roots and intermediates) or all. Default is none");
+        opts.addOption("cacheTtl", true, "reuse the chain of an endpoint captured within this many seconds instead of connecting again; the trust is still evaluated with the current trust stores");
+        opts.addOption("resultCache", true, "with -cacheTtl: keep the captured chains in this file between runs, otherwise they are only kept in memory");
+        opts.addOption("timings", false, "log p50/p95/p99 times per scan phase and protocol handler when done");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine inputs = parser.parse(opts, args);
 
-        if (inputs.hasOption("connectTimeout")) {
-            TimeoutSettings.setConnectionTimeout(Integer.parseInt(inputs.getOptionValue("connectTimeout")));
-        }
-        if (inputs.hasOption("overallTimeout")) {
-            TimeoutSettings.setOverallTimeout(Integer.parseInt(inputs.getOptionValue("overallTimeout")));
-        }
-
-        if (!inputs.hasOption("host")) {
+        if (!inputs.hasOption("host") && !inputs.hasOption("batch")) {
             new HelpFormatter().printHelp("java -jar install-cert-<VERSION>-jar-with-dependencies.jar", opts);
             return;
         }
 
         InstallCert ref = new InstallCert();
+        if (inputs.hasOption("connectTimeout")) {
+            ref.setConnectionTimeout(Integer.parseInt(inputs.getOptionValue("connectTimeout")));
+        }
+        if (inputs.hasOption("overallTimeout")) {
+            ref.setOverallTimeout(Integer.parseInt(inputs.getOptionValue("overallTimeout")));
+        }
 
         // handle command line arguments
         String host = null;
@@ -241,9 +273,6 @@ public class InstallCert {
         File storeLocation2 = null;
 
         // handle standard arguments
-        String[] c = inputs.getOptionValue("host").split(":");
-        host = c[0];
-        port = (c.length < 2) ? 443 : Integer.parseInt(c[1]);
         if (inputs.hasOption("password")) {
             password = inputs.getOptionValue("password").toCharArray();
         } else {
@@ -255,9 +284,25 @@ public class InstallCert {
             pwd2 = DEFAULT;
         }
 
+        if (inputs.hasOption("noCache")) {
+            TrustStoreCache.setDefault(new TrustStoreCache(null));
+        }
+
         //option for no trust store discovery
         if (!inputs.hasOption("skipDisco")) {
-            ref.trustStoresToModify.addAll(KeyStoreUtilities.findTrustStores());
+            if (inputs.hasOption("discoveryRoot")) {
+                List<File> roots = new ArrayList<File>();
+                for (String value : inputs.getOptionValues("discoveryRoot")) {
+                    for (String root : value.split(File.pathSeparator)) {
+                        if (!root.isEmpty()) {
+                            roots.add(new File(root));
+                        }
+                    }
+                }
+                ref.addAll(KeyStoreUtilities.findTrustStores(roots));
+            } else {
+                ref.addAll(KeyStoreUtilities.findTrustStores());
+            }
         }
 
         if (inputs.hasOption("truststore")) {
@@ -272,8 +317,54 @@ public class InstallCert {
         if (inputs.hasOption("exclude")) {
             ref.setExcludeAllTrustStates(true);
         }
+        if (inputs.hasOption("sniffTimeout")) {
+            ref.setSniffTimeout(Integer.parseInt(inputs.getOptionValue("sniffTimeout")));
+        }
+        if (inputs.hasOption("captureOnly")) {
+            ref.setCaptureOnly(true);
+        }
+        ScanTimings timings = null;
+        if (inputs.hasOption("timings")) {
+            timings = new ScanTimings();
+            ref.setScanListener(timings);
+        }
+
+        ChainCache chainCache = null;
+        if (inputs.hasOption("cacheTtl")) {
+            if (inputs.hasOption("watch")) {
+                LOG.info("Ignoring -cacheTtl, -watch always connects");
+            } else {
+                chainCache = new ChainCache(TimeUnit.SECONDS.toMillis(Long.parseLong(inputs.getOptionValue("cacheTtl"))),
+                        10000, inputs.hasOption("resultCache") ? new File(inputs.getOptionValue("resultCache")) : null);
+                ref.setChainCache(chainCache);
+            }
+        }
+
+        if (inputs.hasOption("batch")) {
+            try {
+                if (inputs.hasOption("watch")) {
+                    runWatch(ref, inputs, timings);
+                } else {
+                    runBatch(ref, inputs);
+                }
+            } finally {
+                logTimings(timings);
+                saveChainCache(chainCache);
+            }
+            return;
+        }
+
+        String[] c = inputs.getOptionValue("host").split(":");
+        host = c[0];
+        port = (c.length < 2) ? 443 : Integer.parseInt(c[1]);
 
-        Set<X509Certificate> untrustedCerts = ref.getCerts(host, port);
+        Set<X509Certificate> untrustedCerts;
+        try {
+            untrustedCerts = ref.getCerts(host, port);
+        } finally {
+            logTimings(timings);
+            saveChainCache(chainCache);
+        }
         Set<X509Certificate> certsToSave = new HashSet<X509Certificate>();
 
         // save the new certificates approved by the user
@@ -301,6 +392,17 @@ public class InstallCert {
             if (inputs.hasOption("file")) {
                 saveCerts(certsToSave, host);
             }
+            if (inputs.hasOption("bundle")) {
+                PemBundle bundle = new PemBundle(new File(inputs.getOptionValue("bundle")));
+                try {
+                    for (X509Certificate cert : certsToSave) {
+                        bundle.add(cert, host + ":" + port);
+                    }
+                } finally {
+                    bundle.close();
+                }
+                LOG.info(bundle.getCount() + " certificate(s) written to " + inputs.getOptionValue("bundle"));
+            }
             if (inputs.hasOption("noimport")) {
                 LOG.info("Skipping JKS import due to -noimport flag");
             } else {
@@ -312,6 +414,214 @@ public class InstallCert {
         }
     } // main
 
+    /**
+     * batch mode: scans every target of the list concurrently and writes one
+     * result line per host to stdout as soon as it is done. There is no
+     * interactive confirmation, certificates are imported only with -danger.
+     */
+    private static void runBatch(final InstallCert ref, final CommandLine inputs) throws Exception {
+        BatchScanner scanner = new BatchScanner(ref);
+        scanner.setWorkers(inputs.getOptionValue("workers"));
+        if (inputs.hasOption("queueSize")) {
+            scanner.setQueueCapacity(Integer.parseInt(inputs.getOptionValue("queueSize")));
+        }
+        NioHandshakeEngine engine = null;
+        if (inputs.hasOption("nio")) {
+            int maxInFlight = inputs.hasOption("maxInFlight")
+                    ? Integer.parseInt(inputs.getOptionValue("maxInFlight")) : 1024;
+            engine = new NioHandshakeEngine(Integer.parseInt(inputs.getOptionValue("nio")), maxInFlight);
+            scanner.setNioEngine(engine);
+        }
+        final boolean save = inputs.hasOption("file");
+        final boolean importCerts = inputs.hasOption("danger") && !inputs.hasOption("noimport");
+        // one write per trust store once the batch is done
+        final TrustStoreTransaction transaction = importCerts ? ref.beginTransaction() : null;
+        final PemBundle bundle = inputs.hasOption("bundle")
+                ? new PemBundle(new File(inputs.getOptionValue("bundle"))) : null;
+        final boolean bundleAll = inputs.hasOption("bundleAll");
+        final NdjsonReport report = openReport(inputs, false);
+        scanner.setResultHandler(new BatchResultHandler() {
+            @Override
+            public void handle(ScanResult result) throws Exception {
+                if (report != null) {
+                    report.write(result);
+                }
+                if (report == null || !"-".equals(inputs.getOptionValue("report"))) {
+                    System.out.println(result);
+                }
+                Set<X509Certificate> untrusted = result.getUntrustedCerts();
+                if (bundle != null) {
+                    Collection<X509Certificate> certs = bundleAll ? Arrays.asList(result.getChain()) : untrusted;
+                    for (X509Certificate cert : certs) {
+                        bundle.add(cert, result.getTarget().toString());
+                    }
+                }
+                if (untrusted.isEmpty()) {
+                    return;
+                }
+                String host = result.getTarget().getHost();
+                if (save) {
+                    saveCerts(untrusted, host);
+                }
+                if (importCerts) {
+                    transaction.add(untrusted, host);
+                }
+            }
+        });
+
+        String source = inputs.getOptionValue("batch");
+        Reader reader = "-".equals(source)
+                ? new InputStreamReader(System.in, "UTF-8")
+                : new InputStreamReader(new FileInputStream(source), "UTF-8");
+        try {
+            BatchScanner.Summary summary = scanner.run(reader);
+            LOG.info("Scanned " + summary);
+            if (!importCerts && summary.getUntrusted() > 0) {
+                LOG.info("Skipping JKS import, batch mode only imports with the -danger flag");
+            }
+            if (transaction != null && transaction.size() > 0) {
+                LOG.info("Importing " + transaction.size() + " certificate(s)");
+                transaction.commit();
+            }
+        } finally {
+            reader.close();
+            if (engine != null) {
+                engine.close();
+            }
+            if (report != null) {
+                report.close();
+            }
+            if (bundle != null) {
+                bundle.close();
+                LOG.info(bundle.getCount() + " certificate(s) written to " + inputs.getOptionValue("bundle"));
+            }
+        }
+    }
+
+    /**
+     * @param flushEachRecord whether a report file is flushed after every
+     * record, stdout always is
+     * @return the report requested by -report, or <code>null</code>
+     */
+    private static NdjsonReport openReport(CommandLine inputs, boolean flushEachRecord) throws IOException {
+        if (!inputs.hasOption("report")) {
+            return null;
+        } else if ("-".equals(inputs.getOptionValue("report"))) {
+            return new NdjsonReport(System.out, true);
+        } else {
+            return new NdjsonReport(new FileOutputStream(inputs.getOptionValue("report")), flushEachRecord);
+        }
+    }
+
+    /**
+     * daemon mode: scans the endpoints of the batch file over and over on one
+     * warm instance, and reports and imports only what changed. Runs until the
+     * process is stopped, a shutdown hook then stops the scans, closes the
+     * report and logs the timings.
+     */
+    private static void runWatch(final InstallCert ref, final CommandLine inputs, final ScanTimings timings)
+            throws Exception {
+        String source = inputs.getOptionValue("batch");
+        if ("-".equals(source)) {
+            throw new IllegalArgumentException("-watch needs a batch file, not stdin");
+        }
+        File inventory = new File(source);
+        long interval = TimeUnit.SECONDS.toMillis(Long.parseLong(inputs.getOptionValue("watch")));
+        // the handshake workers of batch mode are the scans in parallel here
+        BatchScanner workers = new BatchScanner(ref);
+        workers.setWorkers(inputs.getOptionValue("workers"));
+        final EndpointWatcher watcher = new EndpointWatcher(ref, interval, workers.getWorkers(BatchScanner.Stage.HANDSHAKE));
+        if (!inputs.hasOption("noimport")) {
+            watcher.setPolicy(EndpointWatcher.Policy.valueOf(inputs.getOptionValue("policy", "none").toUpperCase()));
+        }
+        // nothing but the chain is needed to notice a change
+        ref.setCaptureOnly(true);
+        // every record is on disk as soon as it is reported, there is no end
+        final NdjsonReport report = openReport(inputs, true);
+        watcher.setResultHandler(new BatchResultHandler() {
+            @Override
+            public void handle(ScanResult result) throws Exception {
+                if (report != null) {
+                    report.write(result);
+                }
+                if (report == null || !"-".equals(inputs.getOptionValue("report"))) {
+                    System.out.println(result);
+                }
+            }
+        });
+        Thread shutdown = new Thread("watch-shutdown") {
+            @Override
+            public void run() {
+                stopWatch(watcher, report);
+                logTimings(timings);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdown);
+        LOG.info("Watching the endpoints of " + inventory + ", policy " + watcher.getPolicy());
+        long modified = -1;
+        try {
+            while (true) {
+                long current = inventory.lastModified();
+                if (current != modified) {
+                    try {
+                        watcher.setTargets(EndpointWatcher.readTargets(inventory));
+                        modified = current;
+                    } catch (IOException ex) {
+                        LOG.warn("cannot read " + inventory + ", keeping the current endpoints: " + ex.getMessage());
+                    }
+                }
+                Thread.sleep(Math.min(interval, TimeUnit.SECONDS.toMillis(10)));
+            }
+        } finally {
+            try {
+                // the timings are logged by the caller
+                Runtime.getRuntime().removeShutdownHook(shutdown);
+                stopWatch(watcher, report);
+            } catch (IllegalStateException ex) {
+                // the hook is already running
+            }
+        }
+    } // runWatch
+
+    private static void stopWatch(EndpointWatcher watcher, NdjsonReport report) {
+        watcher.close();
+        if (report == null) {
+            return;
+        }
+        try {
+            report.close();
+        } catch (IOException ex) {
+            LOG.warn("cannot close the report: " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private static void saveChainCache(ChainCache chainCache) {
+        if (chainCache == null) {
+            return;
+        }
+        try {
+            chainCache.save();
+        } catch (IOException ex) {
+            LOG.warn("cannot save the result cache " + chainCache.getFile() + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private static void logTimings(ScanTimings timings) {
+        if (timings == null) {
+            return;
+        }
+        LOG.info("Time per phase:");
+        for (String line : timings.report()) {
+            LOG.info("  " + line);
+        }
+    }
+
     protected static String ask(String prompt)
             throws IOException {
         System.out.print(prompt);
@@ -321,14 +631,97 @@ public class InstallCert {
         return line;
     } // ask
 
-    private boolean excludeAllTrustStates = false;
-
-    private Set<KeyStoreWrapper> trustStoresToModify = new HashSet<KeyStoreWrapper>();
+    private volatile boolean excludeAllTrustStates = false;
+
+    //changed under this instance's monitor, iterated by scans without it
+    private final Set<KeyStoreWrapper> trustStoresToModify = new CopyOnWriteArraySet<KeyStoreWrapper>();
+    //built from all trust stores on first use, dropped whenever they change
+    private volatile X509TrustManager trustManager;
+    //one number per instance and change of its trust stores, unique across
+    //instances since a chain cache may be shared between them
+    private static final AtomicInteger GENERATIONS = new AtomicInteger();
+    //the verdicts in the chain cache that are current for this instance
+    private volatile int trustGeneration = GENERATIONS.incrementAndGet();
+    private ChainCache chainCache;
+
+    private int connectionTimeout = -1;
+    private int overallTimeout = -1;
+    private String proxyHost;
+    private int proxyPort;
+    private boolean captureOnly;
+    private int sniffTimeout = 1000;
+    private ScanListener scanListener;
 
     public InstallCert() {
 
     }
 
+    /**
+     * @return connect and read timeout in milliseconds for scans started by
+     * this instance, defaults to {@link TimeoutSettings#getConnectionTimeout()}
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout < 0 ? TimeoutSettings.getConnectionTimeout() : connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @return timeout in milliseconds for asynchronous protocol handlers,
+     * defaults to {@link TimeoutSettings#getOverallTimeout()}
+     */
+    public int getOverallTimeout() {
+        return overallTimeout < 0 ? TimeoutSettings.getOverallTimeout() : overallTimeout;
+    }
+
+    public void setOverallTimeout(int overallTimeout) {
+        this.overallTimeout = overallTimeout;
+    }
+
+    /**
+     * @return the HTTPS proxy host to tunnel through, defaults to the
+     * <code>https.proxyHost</code> system property; <code>null</code> if no
+     * proxy is used
+     */
+    public String getProxyHost() {
+        String tunnelHost = proxyHost != null ? proxyHost : System.getProperty("https.proxyHost");
+        if ((tunnelHost != null) && (!tunnelHost.trim().isEmpty())) {
+            return tunnelHost;
+        }
+        return null;
+    }
+
+    /**
+     * @return the HTTPS proxy port, defaults to the
+     * <code>https.proxyPort</code> system property
+     */
+    public int getProxyPort() {
+        if (proxyHost != null) {
+            return proxyPort;
+        }
+        String tunnelPortStr = System.getProperty("https.proxyPort");
+        int tunnelPort = 0;
+        if ((tunnelPortStr != null) && (!tunnelPortStr.trim().isEmpty())) {
+            tunnelPort = Integer.parseInt(tunnelPortStr);
+        }
+        return tunnelPort;
+    }
+
+    /**
+     * overrides the proxy system properties for scans started by this
+     * instance
+     *
+     * @param proxyHost the proxy host, <code>null</code> to fall back to the
+     * system properties
+     * @param proxyPort the proxy port
+     */
+    public void setProxy(String proxyHost, int proxyPort) {
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+    }
+
     public List<File> getTrustStores() {
         List<File> files = new ArrayList<File>();
         for (KeyStoreWrapper wrapper : trustStoresToModify) {
@@ -349,8 +742,69 @@ public class InstallCert {
         return excludeAllTrustStates;
     }
 
-    public void setExcludeAllTrustStates(boolean excludeAllTrustStates) {
+    public synchronized void setExcludeAllTrustStates(boolean excludeAllTrustStates) {
         this.excludeAllTrustStates = excludeAllTrustStates;
+        trustGeneration = GENERATIONS.incrementAndGet();
+    }
+
+    /**
+     * if true, every handshake is aborted as soon as the server sent its
+     * certificate chain, whether it is trusted or not. This saves the rest of
+     * the handshake and leaves no session behind on the server.
+     *
+     * @return true/false
+     */
+    public boolean isCaptureOnly() {
+        return captureOnly;
+    }
+
+    public void setCaptureOnly(boolean captureOnly) {
+        this.captureOnly = captureOnly;
+    }
+
+    /**
+     * how long to wait, in milliseconds, for a server to greet first before
+     * trying SSL/TLS. A greeting identifies a STARTTLS protocol without a
+     * failed handshake. Defaults to 1 second, 0 disables sniffing. Well known
+     * SSL/TLS ports are never sniffed.
+     *
+     * @return the window in milliseconds
+     */
+    public int getSniffTimeout() {
+        return sniffTimeout;
+    }
+
+    public void setSniffTimeout(int sniffTimeout) {
+        this.sniffTimeout = sniffTimeout;
+    }
+
+    /**
+     * receives the time spent in each phase of every scan started after it
+     * was set, e.g. a {@link ScanTimings}
+     *
+     * @return the listener, or <code>null</code>
+     */
+    public ScanListener getScanListener() {
+        return scanListener;
+    }
+
+    public void setScanListener(ScanListener scanListener) {
+        this.scanListener = scanListener;
+    }
+
+    /**
+     * if set, a target whose chain was captured within the time to live of
+     * the cache is not connected to again; its chain is taken from the cache
+     * and evaluated locally
+     *
+     * @return the cache, or <code>null</code>
+     */
+    public ChainCache getChainCache() {
+        return chainCache;
+    }
+
+    public void setChainCache(ChainCache chainCache) {
+        this.chainCache = chainCache;
     }
 
     /**
@@ -377,12 +831,19 @@ public class InstallCert {
         KeyStoreWrapper wrapper = new KeyStoreWrapper();
         wrapper.setKeyStoreLocation(file);
         wrapper.setKeyStorePassword(password);
+        wrapper.setKeyStoreType(keystoreType);
         wrapper.setStore(KeyStoreUtilities.getKeyStore(file, password, keystoreType));
-        trustStoresToModify.add(wrapper);
+        synchronized (this) {
+            trustStoresToModify.add(wrapper);
+            trustManager = null;
+            trustGeneration = GENERATIONS.incrementAndGet();
+        }
     }
 
-    public void addAll(Set<KeyStoreWrapper> set) {
+    public synchronized void addAll(Set<KeyStoreWrapper> set) {
         this.trustStoresToModify.addAll(set);
+        this.trustManager = null;
+        trustGeneration = GENERATIONS.incrementAndGet();
     }
 
     /**
@@ -392,36 +853,217 @@ public class InstallCert {
      * @param port
      * @return
      */
-    public synchronized Set<X509Certificate> getCerts(String host, int port) throws Exception {
+    public Set<X509Certificate> getCerts(String host, int port) throws Exception {
+        ScanTarget target = new ScanTarget(host, port);
+        ScanContext context = newScanContext();
+        if (!replayCached(context, target)) {
+            Socket socket = connect(context, target, resolve(context, target));
+            handshake(context, socket, target);
+            cacheChain(context, target);
+        }
+        long start = System.nanoTime();
+        Set<X509Certificate> untrusted = evaluate(context);
+        context.phaseCompleted(host, port, ScanListener.Phase.EVALUATE, null, start, true);
+        return untrusted;
+    }
+
+    /**
+     * Runs all phases of a scan against a single target. Unlike
+     * {@link #getCerts(String, int)}, failures are reported through
+     * {@link ScanResult#getError()} rather than thrown.
+     *
+     * @param target the endpoint to scan
+     * @return the scan result, never <code>null</code>
+     */
+    public ScanResult scan(ScanTarget target) {
+        ScanResult result = new ScanResult(target);
+        try {
+            ScanContext context = newScanContext();
+            if (!replayCached(context, target)) {
+                result.setAddress(resolve(context, target));
+                Socket socket = connect(context, target, result.getAddress());
+                handshake(context, socket, target);
+            }
+            evaluate(context, result);
+        } catch (Exception ex) {
+            result.setError(ex);
+        }
+        return result;
+    }
 
-        //if (trustStoresToModify.isEmpty()) {
-        //    throw new Exception("must initialize the trust store(s) first");
-        //}
+    /**
+     * Creates the state for a single scan: a fresh {@link SSLContext} wired to
+     * a fresh {@link SavingTrustManager}, and the timeout and proxy settings
+     * currently in effect. Contexts are not shared between scans.
+     *
+     * @return a new scan context
+     * @throws Exception if the SSL context cannot be set up
+     */
+    public ScanContext newScanContext() throws Exception {
         // obtain an instance of a TLS SSLContext
-        context = SSLContext.getInstance("TLS");
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        // taken first, a change while the trust manager is built makes
+        // the verdicts of this scan outdated rather than current
+        int generation = trustGeneration;
+        SavingTrustManager tm
+                = new SavingTrustManager(createTrustManager(), trustStoresToModify);
+        tm.trustGeneration = generation;
+        tm.setCaptureOnly(isCaptureOnly());
+        sslContext.init(null, new TrustManager[]{tm}, null);
+        return new ScanContext(sslContext, tm, getConnectionTimeout(), getOverallTimeout(),
+                getProxyHost(), getProxyPort(), getSniffTimeout(), scanListener);
+    }
 
-        // obtain a TrustManagerFactory instance
-        TrustManagerFactory tmf
-                = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    private static String cacheKey(ScanTarget target) {
+        // the host name is always sent as SNI
+        return ChainCache.key(target.getHost(), target.getPort(), target.getHost(), target.getProtocol());
+    }
+
+    /**
+     * Takes the chain of a target from the {@link #getChainCache() cache},
+     * in place of the resolve, connect and handshake phases. The verdict is
+     * reused if the trust stores did not change since, otherwise the chain
+     * is validated again.
+     *
+     * @param context a new scan
+     * @param target the target
+     * @return true if the chain was taken from the cache
+     */
+    boolean replayCached(ScanContext context, ScanTarget target) {
+        ChainCache cache = chainCache;
+        if (cache == null) {
+            return false;
+        }
+        String key = cacheKey(target);
+        ChainCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            return false;
+        }
+        SavingTrustManager tm = context.getTrustManager();
+        if (entry.getTrustGeneration() == tm.trustGeneration) {
+            tm.replay(entry);
+        } else {
+            tm.revalidate(entry.getChain(), entry.getAuthType());
+            cache.put(key, new ChainCache.Entry(entry.getChain(), entry.getAuthType(), entry.getCapturedAt(),
+                    tm.isCapturedChainTrusted(), Arrays.asList(tm.getNewCerts()), tm.trustGeneration));
+        }
+        context.setFromCache(true);
+        LOG.info("... using the chain " + target + " presented "
+                + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - entry.getCapturedAt())
+                + " s ago ...");
+        return true;
+    } // replayCached
+
+    /**
+     * Puts the chain a scan captured into the {@link #getChainCache() cache}.
+     *
+     * @param context a scan after its handshake
+     * @param target the target
+     */
+    void cacheChain(ScanContext context, ScanTarget target) {
+        ChainCache cache = chainCache;
+        if (cache == null || context.isFromCache() || !context.isChainCaptured()) {
+            return;
+        }
+        SavingTrustManager tm = context.getTrustManager();
+        cache.put(cacheKey(target), new ChainCache.Entry(context.getCapturedChain(), tm.getCapturedAuthType(),
+                System.currentTimeMillis(), context.isChainTrusted(), Arrays.asList(context.getNewCerts()),
+                tm.trustGeneration));
+    }
+
+    /**
+     * resolve phase: looks up the address of the target. When a proxy is
+     * configured, name resolution is left to the proxy.
+     *
+     * @param context
+     * @param target
+     * @return the address, or <code>null</code> if a proxy is in use
+     * @throws UnknownHostException
+     */
+    InetAddress resolve(ScanContext context, ScanTarget target) throws UnknownHostException {
+        if (context.isProxied()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            tmf.init((KeyStore) null);
-        } catch (Exception ex) {
-            LOG.warn("failed to null trust store ", ex);
+            InetAddress address = InetAddress.getByName(target.getHost());
+            success = true;
+            return address;
+        } finally {
+            context.phaseCompleted(target.getHost(), target.getPort(), ScanListener.Phase.RESOLVE, null, start, success);
         }
-        // initialize it with known certificate data
-        for (KeyStoreWrapper wrapper : trustStoresToModify) {
+    }
+
+    /**
+     * connect phase: opens a plain TCP connection to the target, or a tunnel
+     * through the configured proxy.
+     *
+     * @param context
+     * @param target
+     * @param address the resolved address, may be <code>null</code> if a
+     * proxy is in use
+     * @return a connected socket, or <code>null</code> if the target names a
+     * STARTTLS protocol, in which case the protocol handler makes its own
+     * connection
+     * @throws IOException
+     */
+    Socket connect(ScanContext context, ScanTarget target, InetAddress address) throws IOException {
+        if (!target.isDirectTls()) {
+            return null;
+        }
+        String host = target.getHost();
+        int port = target.getPort();
+
+        /*
+         * Set up a socket to do tunneling through the proxy.
+         * Start it off as a regular socket, then layer SSL
+         * over the top of it.
+         */
+        String tunnelHost = context.getProxyHost();
+        if (tunnelHost != null) {
+            int tunnelPort = context.getProxyPort();
+            LOG.info("Opening socket to proxy " + tunnelHost + ":" + tunnelPort + "...");
+            Socket tunnel = new Socket();
+            long start = System.nanoTime();
+            ScanListener.Phase phase = ScanListener.Phase.CONNECT;
             try {
-                tmf.init(wrapper.getStore());
-            } catch (Exception ex) {
-                LOG.warn("failed to apply trust store " + wrapper.getKeyStoreLocation().getAbsolutePath(), ex);
+                tunnel.connect(new InetSocketAddress(tunnelHost, tunnelPort), context.getConnectionTimeout());
+                context.phaseCompleted(host, port, phase, "proxy", start, true);
+                start = System.nanoTime();
+                phase = ScanListener.Phase.PROXY_TUNNEL;
+                doTunnelHandshake(tunnel, host, port);
+                context.phaseCompleted(host, port, phase, null, start, true);
+            } catch (IOException ex) {
+                context.phaseCompleted(host, port, phase, phase == ScanListener.Phase.CONNECT ? "proxy" : null,
+                        start, false);
+                tunnel.close();
+                throw ex;
             }
+            return tunnel;
         }
 
-        // obtain default TrustManager instance
-        X509TrustManager defaultTrustManager
-                = (X509TrustManager) tmf.getTrustManagers()[0];
+        LOG.info("Opening connection to " + host + ":" + port + "...");
+        Socket socket = new Socket();
+        long start = System.nanoTime();
+        try {
+            socket.connect(new InetSocketAddress(address, port), context.getConnectionTimeout());
+            context.phaseCompleted(host, port, ScanListener.Phase.CONNECT, null, start, true);
+        } catch (IOException ex) {
+            context.phaseCompleted(host, port, ScanListener.Phase.CONNECT, null, start, false);
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }
+
+    /**
+     * builds the trust manager used to validate server chains, honoring
+     * {@link #isExcludeAllTrustStates()}
+     */
+    private X509TrustManager createTrustManager() throws Exception {
         if (excludeAllTrustStates) {
-            defaultTrustManager = new X509TrustManager() {
+            return new X509TrustManager() {
                 @Override
                 public void checkClientTrusted(X509Certificate[] xcs, String string) throws CertificateException {
                     throw new CertificateException(string);
@@ -438,33 +1080,108 @@ public class InstallCert {
                 }
             };
         }
-        SavingTrustManager tm
-                = new SavingTrustManager(defaultTrustManager, trustStoresToModify);
-        context.init(null, new TrustManager[]{tm}, null);
-        SSLSocketFactory factory = context.getSocketFactory();
+        X509TrustManager defaultTrustManager = trustManager;
+        if (defaultTrustManager == null) {
+            synchronized (this) {
+                defaultTrustManager = trustManager;
+                if (defaultTrustManager == null) {
+                    // one anchor set for the JRE defaults and every store
+                    List<TrustStoreIndex> stores = new ArrayList<TrustStoreIndex>();
+                    for (KeyStoreWrapper wrapper : trustStoresToModify) {
+                        stores.add(wrapper.getIndex());
+                    }
+                    int count = stores.size();
+                    KeyStoreWrapper jre = TrustStoreCache.getDefault().loadJreDefaults();
+                    if (jre != null) {
+                        stores.add(jre.getIndex());
+                    }
+                    CompositeTrustManager composite = new CompositeTrustManager(jre == null, stores);
+                    LOG.info("... trusting " + composite.getAnchorCount() + " distinct certificate(s) from "
+                            + count + " trust store(s) and the JRE defaults ...");
+                    defaultTrustManager = composite;
+                    trustManager = composite;
+                }
+            }
+        }
+        return defaultTrustManager;
+    }
 
-        /*
-         * Set up a socket to do tunneling through the proxy.
-         * Start it off as a regular socket, then layer SSL
-         * over the top of it.
-         */
-        String tunnelHost = System.getProperty("https.proxyHost");
-        String tunnelPortStr = System.getProperty("https.proxyPort");
-        int tunnelPort = 0;
-        if ((tunnelPortStr != null) && (!tunnelPortStr.trim().isEmpty())) {
-            // Integer tunnelPortInteger = Integer.getInteger(tunnelPortStr);
-            // tunnelPort = (tunnelPortInteger != null) ? tunnelPortInteger.intValue() : 0;
-            tunnelPort = Integer.parseInt(tunnelPortStr);
+    private static boolean considerStarttls(ScanContext context, ScanTarget target, Socket tunnel)
+            throws Exception {
+        if (target.isDirectTls()) {
+            return Starttls.consider(context, target.getHost(), target.getPort(), tunnel);
         }
+        return Starttls.run(context, target.getProtocol(), target.getHost(), target.getPort(), tunnel);
+    }
 
-        Socket tunnel = null;
-        if ((tunnelHost != null) && (!tunnelHost.trim().isEmpty())) {
-            LOG.info("Opening socket to proxy " + tunnelHost + ":" + tunnelPort + "...");
-            tunnel = new Socket(tunnelHost, tunnelPort);
-            doTunnelHandshake(tunnel, host, port);
+    /**
+     * handshake phase: layers SSL/TLS over the connected socket, falling back
+     * to STARTTLS where the server does not seem to speak SSL/TLS right away.
+     * The socket is always closed when this returns.
+     *
+     * @param context the scan the certificates are collected for
+     * @param socket the socket from
+     * {@link #connect(ScanContext, ScanTarget, InetAddress)}
+     * @param target
+     * @throws Exception
+     */
+    void handshake(ScanContext context, Socket socket, ScanTarget target) throws Exception {
+        long start = System.nanoTime();
+        Object event = FlightEvents.get().beginHandshake();
+        boolean failed = true;
+        try {
+            doHandshake(context, socket, target);
+            failed = false;
+        } finally {
+            context.phaseCompleted(target.getHost(), target.getPort(), ScanListener.Phase.HANDSHAKE, null, start,
+                    context.isChainCaptured());
+            if (event != null) {
+                FlightEvents.get().endHandshake(event, target.getHost(), target.getPort(),
+                        target.isDirectTls() ? "tls" : target.getProtocol(), FlightEvents.outcome(context, failed));
+            }
         }
+    }
 
-        LOG.info("Opening connection to " + host + ":" + port + "...");
+    private void doHandshake(ScanContext context, Socket socket, ScanTarget target) throws Exception {
+        String host = target.getHost();
+        int port = target.getPort();
+        Socket tunnel = context.isProxied() ? socket : null;
+        SSLSocketFactory factory = context.getSocketFactory();
+
+        if (socket == null) {
+            // an explicit STARTTLS protocol, nothing to try first
+            if (!considerStarttls(context, target, tunnel)) {
+                LOG.info("... " + target.getProtocol() + " handler did not obtain a certificate from " + host + ":" + port);
+            }
+            return;
+        }
+
+        if (context.getSniffTimeout() > 0 && !ProtocolSniffer.isImplicitTlsPort(port)) {
+            ProtocolSniffer.Greeting greeting;
+            long start = System.nanoTime();
+            try {
+                greeting = ProtocolSniffer.sniff(socket, context.getSniffTimeout(), context.getConnectionTimeout());
+            } catch (IOException e) {
+                context.phaseCompleted(host, port, ScanListener.Phase.SNIFF, null, start, false);
+                socket.close();
+                throw e;
+            }
+            context.phaseCompleted(host, port, ScanListener.Phase.SNIFF,
+                    greeting == null ? null : greeting.getProtocol(), start, true);
+            if (greeting != null) {
+                // a server that speaks first does not speak SSL/TLS
+                LOG.info("... " + host + ":" + port + " greeted with \"" + greeting + "\" ...");
+                if (greeting.getProtocol() == null) {
+                    socket.close();
+                    if (!considerStarttls(context, target, tunnel)) {
+                        LOG.info("... unrecognized greeting, no STARTTLS handler obtained a certificate ...");
+                    }
+                } else if (!Starttls.runConnected(context, greeting, host, port, socket, tunnel)) {
+                    LOG.info("... " + greeting.getProtocol() + " handler did not obtain a certificate from " + host + ":" + port);
+                }
+                return;
+            }
+        }
 
         LOG.info("... opening connection to " + host + ":" + port
                 + " ...");
@@ -472,13 +1189,11 @@ public class InstallCert {
         try {
 
             if (tunnel != null) {
-                LOG.info("Using proxy configuration. proxy: " + tunnelHost + ":" + tunnelPort);
-                sslSocket = (SSLSocket) factory.createSocket(tunnel, host, port, true);
-            } else {
-                sslSocket = (SSLSocket) factory.createSocket(host, port);
+                LOG.info("Using proxy configuration. proxy: " + context.getProxyHost() + ":" + context.getProxyPort());
             }
+            sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
 
-            sslSocket.setSoTimeout(TimeoutSettings.getConnectionTimeout());
+            sslSocket.setSoTimeout(context.getConnectionTimeout());
             LOG.info("... starting SSL handshake ...");
 
             sslSocket.startHandshake();
@@ -491,7 +1206,10 @@ public class InstallCert {
         //   SocketException with "Connection reset" message.
         // Thus three distinct cases for considering a STARTTLS extension below
         catch (SSLHandshakeException e) {
-            if (e.getCause() != null
+            if (ChainCapturedException.isCause(e)) {
+                // capture-only mode, the handshake was aborted on purpose
+                LOG.info("... certificate chain captured, handshake aborted ...");
+            } else if (e.getCause() != null
                     && e.getCause().getClass().getSimpleName().equals("ValidatorException")
                     && e.getCause().getCause() != null
                     && e.getCause().getCause().getClass().getSimpleName().equals("SunCertPathBuilderException")) {
@@ -499,15 +1217,14 @@ public class InstallCert {
                 // previously unknown certificate, so report it and go
                 // ahead...
                 LOG.info(e.getMessage());
-            } else if (e.getCause() != null
-                    && e.getCause().getClass().getName().equals("java.io.EOFException")) // "Remote host closed connection during handshake"
+            } else if (ProtocolSniffer.looksLikePlaintext(e)) // "Remote host closed connection during handshake"
             {
                 // close the unsuccessful SSL socket
                 if (sslSocket != null) {
                     sslSocket.close();
                 }
                 // consider trying STARTTLS extension over ordinary socket
-                if (!Starttls.consider(host, port, tunnel)) {
+                if (!considerStarttls(context, target, tunnel)) {
                     // Starttls.consider () is expected to have reported
                     // everything except the final good-bye...
                     LOG.info(e.getMessage());
@@ -522,7 +1239,7 @@ public class InstallCert {
                 }
             }
         } catch (SSLException e) {
-            if (e.getMessage().equals("Unrecognized SSL message, plaintext connection?")) {
+            if (ProtocolSniffer.looksLikePlaintext(e)) {
                 LOG.info("ERROR on SSL handshake: "
                         + e.toString());
                 if (LOG.isDebugEnabled()) {
@@ -532,7 +1249,7 @@ public class InstallCert {
                     sslSocket.close();
                 }
                 // consider trying STARTTLS extension over ordinary socket
-                if (!Starttls.consider(host, port, tunnel)) {
+                if (!considerStarttls(context, target, tunnel)) {
                     // Starttls.consider () is expected to have reported
                     // everything except the final good-bye...
                     LOG.info(e.getMessage());
@@ -547,7 +1264,7 @@ public class InstallCert {
                 }
             }
         } catch (SocketException e) {
-            if (e.getMessage().equals("Connection reset")) {
+            if (ProtocolSniffer.looksLikePlaintext(e)) {
                 LOG.info("ERROR on SSL handshake: "
                         + e.toString());
                 if (LOG.isDebugEnabled()) {
@@ -557,7 +1274,7 @@ public class InstallCert {
                     sslSocket.close();
                 }
                 // consider trying STARTTLS extension over ordinary socket
-                if (!Starttls.consider(host, port, tunnel)) {
+                if (!considerStarttls(context, target, tunnel)) {
                     // Starttls.consider () is expected to have reported
                     // everything except the final good-bye...
                     LOG.info(e.getMessage());
@@ -575,12 +1292,46 @@ public class InstallCert {
 
             if (sslSocket != null && !sslSocket.isClosed()) {
                 sslSocket.close();
+            } else if (sslSocket == null) {
+                socket.close();
             }
         }
+    }
 
+    /**
+     * evaluate phase for a {@link ScanResult}: records the presented chain
+     * and the untrusted certificates, or fails the result if the server never
+     * presented a chain at all.
+     *
+     * @param context the scan after the handshake phase
+     * @param result the result to complete
+     * @throws KeyStoreException
+     */
+    void evaluate(ScanContext context, ScanResult result) throws KeyStoreException {
+        X509Certificate[] chain = context.getCapturedChain();
+        if (chain.length == 0) {
+            result.setError(new SSLException("no certificate chain obtained"));
+            return;
+        }
+        cacheChain(context, result.getTarget());
+        long start = System.nanoTime();
+        result.setChain(chain);
+        result.setUntrustedCerts(evaluate(context));
+        context.phaseCompleted(result.getTarget().getHost(), result.getTarget().getPort(),
+                ScanListener.Phase.EVALUATE, null, start, true);
+    }
+
+    /**
+     * evaluate phase: picks the certificates the server sent that are not yet
+     * known to any of the trust stores.
+     *
+     * @param context the scan after the handshake phase
+     * @return a potentially empty set of untrusted certificates
+     * @throws KeyStoreException
+     */
+    Set<X509Certificate> evaluate(ScanContext context) throws KeyStoreException {
         // get the full set of new accumulated certificates as an array
-        X509Certificate[] chain
-                = tm.newCerts.toArray(new X509Certificate[0]);
+        X509Certificate[] chain = context.getNewCerts();
 
         // an empty set for certificates to be selected for saving 
         Set<X509Certificate> certsToSave = new HashSet<X509Certificate>();
@@ -596,7 +1347,7 @@ public class InstallCert {
 
                 boolean trusted = false;
                 for (KeyStoreWrapper wrapper : trustStoresToModify) {
-                    if (wrapper.getStore().getCertificateAlias(cert) != null) {
+                    if (wrapper.getIndex().contains(cert)) {
                         LOG.info("Certificate already known to the"
                                 + " truststore: " + wrapper.getKeyStoreLocation().getAbsolutePath());
                         trusted = true;
@@ -616,13 +1367,15 @@ public class InstallCert {
      * clears all settings and nullifies are cached passwords. This should be
      * called when this object is no longer needed
      */
-    public void close() {
+    public synchronized void close() {
 
         for (KeyStoreWrapper wrapper : trustStoresToModify) {
             wrapper.clear();
 
         }
         trustStoresToModify.clear();
+        trustManager = null;
+        trustGeneration = GENERATIONS.incrementAndGet();
     }
 
     /**
@@ -712,26 +1465,44 @@ public class InstallCert {
         /* tunneling Handshake was successful! */
     }
 
+    /**
+     * Adds the certificates to every trust store and writes each store. To
+     * import the results of many scans with a single write per store, use a
+     * {@link #beginTransaction() transaction} instead.
+     *
+     * @param certsToSave the approved certificates
+     * @param host the host they were obtained from, part of the aliases
+     * @throws Exception
+     */
     public void applyChanges(Set<X509Certificate> certsToSave, String host) throws Exception {
+        TrustStoreTransaction transaction = beginTransaction();
+        transaction.add(certsToSave, host);
+        transaction.commit();
+    }
 
-        if (trustStoresToModify.isEmpty()) {
-            throw new Exception("must initialize a trust store");
-        }
-
-        for (KeyStoreWrapper wrapper : trustStoresToModify) {
-            LOG.info("Applying changes to " + wrapper.getKeyStoreLocation().getAbsolutePath());
-
-            // assign aliases using host name and certificate common name
-            for (X509Certificate cert : certsToSave) {
-                String alias = host + " - " + KeyStoreUtilities.getCommonName(cert);
-                wrapper.getStore().setCertificateEntry(alias, cert);
-            }
+    /**
+     * @return a new transaction collecting certificates for the trust stores
+     * of this instance
+     */
+    public TrustStoreTransaction beginTransaction() {
+        return new TrustStoreTransaction(this);
+    }
 
-            OutputStream out = new FileOutputStream(wrapper.getKeyStoreLocation());
-            wrapper.getStore().store(out, wrapper.getKeyStorePassword());
-            out.close();
+    /**
+     * @return the trust stores changes are written to, changed only under
+     * this instance's monitor
+     */
+    Set<KeyStoreWrapper> getTrustStoresToModify() {
+        return trustStoresToModify;
+    }
 
-        }
+    /**
+     * drops the trust manager built from the trust stores, called after they
+     * were written
+     */
+    synchronized void trustStoresChanged() {
+        trustManager = null;
+        trustGeneration = GENERATIONS.incrementAndGet();
     }
 
     // -- class SavingTrustManager ---------------------------------------------
@@ -742,18 +1513,28 @@ public class InstallCert {
     protected static class SavingTrustManager implements X509TrustManager {
 
         protected X509TrustManager parentTm;
+        //the trust stores, looked up through their shared fingerprint index
+        protected Set<KeyStoreWrapper> knownStores;
+        //certificates seen during this scan only
         protected Set<X509Certificate> allAccumulatedCerts
                 = new HashSet<X509Certificate>();
         protected Set<X509Certificate> newCerts
                 = new HashSet<X509Certificate>();
+        protected boolean captureOnly;
+        //the last chain the server presented, trusted or not
+        protected X509Certificate[] capturedChain;
+        protected boolean capturedChainTrusted;
+        protected String capturedAuthType;
+        //the trust store state this trust manager was built for
+        int trustGeneration;
 
         /**
          * The constructor.
          *
          * @param parentTm an {@link X509TrustManager} instance to do the
          * standard part of certificates validation job
-         * @param ksExtra a {@link KeyStore} instance that contains previously
-         * accumulated certificates
+         * @param ksExtra the trust stores that contain previously accumulated
+         * certificates
          * @throws KeyStoreException
          */
         SavingTrustManager(X509TrustManager parentTm,
@@ -764,24 +1545,101 @@ public class InstallCert {
             } else {
                 this.parentTm = parentTm;
             }
-            if (ksExtra != null) {
-                for (KeyStoreWrapper wrapper : ksExtra) {
-                    Enumeration<String> ksAliases = wrapper.getStore().aliases();
-                    while (ksAliases.hasMoreElements()) {
-                        String alias = ksAliases.nextElement();
-                        try {
-                            this.allAccumulatedCerts.add((X509Certificate) wrapper.getStore().getCertificate(alias));
-                        } catch (Exception ex) {
-                            LOG.info(ex.getMessage());
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug(ex.getMessage(), ex);
-                            }
+            this.knownStores = ksExtra == null
+                    ? Collections.<KeyStoreWrapper>emptySet() : ksExtra;
+            // build the indexes now, not during a handshake
+            for (KeyStoreWrapper wrapper : this.knownStores) {
+                wrapper.getIndex();
+            }
+        } // SavingTrustManager
 
-                        }
+        /**
+         * @param cert a certificate
+         * @return true if the certificate is in one of the trust stores or was
+         * seen during this scan already
+         */
+        private boolean isKnown(X509Certificate cert) {
+            if (this.allAccumulatedCerts.contains(cert)) {
+                return true;
+            }
+            for (KeyStoreWrapper wrapper : this.knownStores) {
+                try {
+                    if (wrapper.getIndex().contains(cert)) {
+                        return true;
+                    }
+                } catch (KeyStoreException ex) {
+                    LOG.info(ex.getMessage());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(ex.getMessage(), ex);
                     }
                 }
             }
-        } // SavingTrustManager
+            return false;
+        } // isKnown
+
+        /**
+         * @param captureOnly if true, every handshake is aborted as soon as
+         * the server chain is recorded, see {@link ChainCapturedException}
+         */
+        void setCaptureOnly(boolean captureOnly) {
+            this.captureOnly = captureOnly;
+        }
+
+        boolean isCaptureOnly() {
+            return captureOnly;
+        }
+
+        /**
+         * @return the untrusted certificates accumulated so far
+         */
+        synchronized X509Certificate[] getNewCerts() {
+            return newCerts.toArray(new X509Certificate[0]);
+        }
+
+        /**
+         * @return the chain the server presented last, or <code>null</code>
+         * if the handshake never got that far
+         */
+        synchronized X509Certificate[] getCapturedChain() {
+            return capturedChain == null ? null : capturedChain.clone();
+        }
+
+        synchronized boolean isCapturedChainTrusted() {
+            return capturedChainTrusted;
+        }
+
+        synchronized String getCapturedAuthType() {
+            return capturedAuthType;
+        }
+
+        /**
+         * Takes a chain and its verdict from an earlier scan, as if the
+         * server had just presented it.
+         *
+         * @param entry the earlier scan
+         */
+        synchronized void replay(ChainCache.Entry entry) {
+            this.capturedChain = entry.getChain();
+            this.capturedChainTrusted = entry.isTrusted();
+            this.capturedAuthType = entry.getAuthType();
+            this.allAccumulatedCerts.addAll(entry.getUntrusted());
+            this.newCerts.addAll(entry.getUntrusted());
+        }
+
+        /**
+         * Validates a chain from an earlier scan against the current trust
+         * stores, as if the server had just presented it.
+         *
+         * @param chain the chain
+         * @param authType the key exchange it was presented for
+         */
+        void revalidate(X509Certificate[] chain, String authType) {
+            try {
+                checkServerTrusted(chain, authType);
+            } catch (CertificateException ex) {
+                // untrusted, or captured on purpose; recorded either way
+            }
+        }
 
         // .. javax.net.ssl.X509TrustManager methods ...........................
         @Override
@@ -794,23 +1652,37 @@ public class InstallCert {
         public void checkServerTrusted(X509Certificate[] chain, String authType)
                 throws CertificateException {
             CertificateException exceptionToRethrow = null;
+            CertificateException validationError = null;
             // check the certificate chain against the system truststore
             try {
                 parentTm.checkServerTrusted(chain, authType);
             } catch (CertificateException e) // the certificate chain was found not trusted
             {
-                // check if the first certificate in the chain is not known yet
-                //   to the local certificate storage
-                if (!this.allAccumulatedCerts.contains(chain[0])) {
-                    // save the exception to be re-thrown later if not known
-                    exceptionToRethrow = e;
-                    // save the full chain to both local accumulators
-                    for (X509Certificate cert : chain) {
-                        this.allAccumulatedCerts.add(cert);
-                        this.newCerts.add(cert);
+                validationError = e;
+                // several STARTTLS handlers may report to the same scan
+                synchronized (this) {
+                    // check if the first certificate in the chain is not known yet
+                    //   to the local certificate storage
+                    if (!isKnown(chain[0])) {
+                        // save the exception to be re-thrown later if not known
+                        exceptionToRethrow = e;
+                        // save the full chain to both local accumulators
+                        for (X509Certificate cert : chain) {
+                            this.allAccumulatedCerts.add(cert);
+                            this.newCerts.add(cert);
+                        }
                     }
                 }
             }
+            synchronized (this) {
+                this.capturedChain = chain.clone();
+                this.capturedChainTrusted = validationError == null;
+                this.capturedAuthType = authType;
+            }
+            // we have what we came for, don't let the server set up a session
+            if (captureOnly) {
+                throw new ChainCapturedException(validationError == null, validationError);
+            }
             // check and re-throw the exception if any 
             if (exceptionToRethrow != null) {
                 throw exceptionToRethrow;
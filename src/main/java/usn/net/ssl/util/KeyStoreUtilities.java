@@ -1,20 +1,18 @@
 package usn.net.ssl.util;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.security.KeyStore;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
-import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,26 +24,24 @@ public class KeyStoreUtilities {
 
     private static final Logger LOG = LoggerFactory.getLogger(KeyStoreUtilities.class.getName());
 
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return the trust stores of the Java installations in the default
+     * locations, see {@link TrustStoreDiscovery#defaultRoots()}
+     */
     public static Set<KeyStoreWrapper> findTrustStores() {
-        Set<KeyStoreWrapper> ret = new HashSet<KeyStoreWrapper>();
-        //FIXME support non-windows setups
-        String tmp = System.getenv("ProgramFiles");
-        if (tmp != null) {
-            ret.addAll(scanWindowsCommon(tmp));
-        }
-        tmp = System.getenv("ProgramFiles(x86)");
-        if (tmp != null) {
-            ret.addAll(scanWindowsCommon(tmp));
-        }
-        tmp = System.getProperty("java.home");
-        if (tmp != null) {
-            ret.addAll(scanWindowsCommon(tmp));
-        }
-        tmp = System.getenv("JAVA_HOME");
-        if (tmp != null) {
-            ret.addAll(scanJavaInstall(new File(tmp)));
-        }
-        return ret;
+        return new TrustStoreDiscovery().discover();
+    }
+
+    /**
+     * @param roots the directories to search for Java installations
+     * @return the trust stores found
+     */
+    public static Set<KeyStoreWrapper> findTrustStores(List<File> roots) {
+        TrustStoreDiscovery discovery = new TrustStoreDiscovery();
+        discovery.setRoots(roots);
+        return discovery.discover();
     }
 
     public static String getCommonName(X509Certificate cert) throws InvalidNameException {
@@ -66,122 +62,70 @@ public class KeyStoreUtilities {
     }
 
     public static KeyStore getKeyStore(File file, char[] password, String trustStoreType) throws Exception {
-        KeyStore ksKnown = KeyStore.getInstance(KeyStore.getDefaultType());
+        KeyStore ksKnown = KeyStore.getInstance(trustStoreType);
         LOG.info("... loading system truststore from '" + file.getCanonicalPath() + "' ...");
+        Object event = FlightEvents.get().beginTrustStore();
+        boolean success = false;
         InputStream in = null;
         try {
             in = new FileInputStream(file);
             ksKnown.load(in, password);
+            success = true;
         } finally {
             if (in != null) {
                 in.close();
             }
-        }
-
-        return ksKnown;
-    }
-
-    private static Collection<? extends KeyStoreWrapper> scanJavaInstall(File file) {
-        Set<KeyStoreWrapper> wrappers = new HashSet<KeyStoreWrapper>();
-        if (file == null || !file.exists()) {
-            return wrappers;
-        }
-        File cacerts = new File(file, "lib/security/cacerts");
-        if (cacerts.exists()) {
-            KeyStoreWrapper wrapper = new KeyStoreWrapper();
-            wrapper.setKeyStoreLocation(cacerts);
-            wrapper.setKeyStorePassword(InstallCert.DEFAULT);
-            try {
-                wrapper.setStore(getKeyStore(wrapper.getKeyStoreLocation(), wrapper.getKeyStorePassword()));
-                wrappers.add(wrapper);
-            } catch (Exception ex) {
-                LOG.warn(ex.getMessage(), ex);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(ex.getMessage(), ex);
-                }
-            }
-        }
-        cacerts = new File(file, "jre/lib/security/cacerts");
-        if (cacerts.exists()) {
-            KeyStoreWrapper wrapper = new KeyStoreWrapper();
-            wrapper.setKeyStoreLocation(cacerts);
-            wrapper.setKeyStorePassword(InstallCert.DEFAULT);
-            try {
-                wrapper.setStore(getKeyStore(wrapper.getKeyStoreLocation(), wrapper.getKeyStorePassword()));
-                wrappers.add(wrapper);
-            } catch (Exception ex) {
-                LOG.warn(ex.getMessage(), ex);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(ex.getMessage(), ex);
-                }
+            if (event != null) {
+                FlightEvents.get().endTrustStore(event, "load", file.getPath(), success ? ksKnown.size() : -1,
+                        file.length(), success);
             }
         }
-        return wrappers;
-    }
 
-    private static Set<? extends KeyStoreWrapper> scanWindowsCommon(String tmp) {
-        //TODO this only covers windows at the moment
-        Set<KeyStoreWrapper> wrappers = new HashSet<KeyStoreWrapper>();
-        File pf = new File(tmp);
-        File java = new File(tmp, "Java");
-        if (java.exists()) {
-            File[] javaInstalls = pf.listFiles(new FileFilter() {
-                @Override
-                public boolean accept(File pathname) {
-                    return pathname.isDirectory() && pathname.getName().equalsIgnoreCase("java");
-                }
-            });
-            if (javaInstalls != null) {
-                for (File javaRoot : javaInstalls) {
-                    File[] javaVersion = javaRoot.listFiles(new FileFilter() {
-                        @Override
-                        public boolean accept(File pathname) {
-                            return pathname.isDirectory();
-                        }
-                    });
-                    if (javaVersion != null) {
-                        for (File file : javaVersion) {
-                            wrappers.addAll(scanJavaInstall(file));
-                        }
-                    }
-                }
-            }
-        }
-        return wrappers;
+        return ksKnown;
     }
 
     public static String certToString(X509Certificate cert) throws CertificateEncodingException {
-        StringWriter sw = new StringWriter();
-        sw.write("-----BEGIN CERTIFICATE-----\n");
-        String encoded = Base64.encodeBase64String(cert.getEncoded());
-        sw.write(encoded.replaceAll("(.{64})", "$1\n"));
-        sw.write("\n-----END CERTIFICATE-----\n");
+        byte[] der = cert.getEncoded();
+        StringWriter sw = new StringWriter(PemEncoder.encodedLength(der.length));
+        try {
+            PemEncoder.write(der, sw);
+        } catch (IOException ex) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(ex);
+        }
         return sw.toString();
     }
 
     public static String toHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 3);
-        for (int b : bytes) {
-            sb.append(String.format("%02x ", b & 255));
+        char[] hex = new char[bytes.length * 3];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[3 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[3 * i + 1] = HEX[bytes[i] & 0xf];
+            hex[3 * i + 2] = ' ';
         }
-        return sb.toString();
+        return new String(hex);
     } // toHexString
 
     public static String prettyPrintCertificate(X509Certificate cert, String newLine) throws InvalidNameException, CertificateEncodingException {
+        Fingerprints fingerprints = Fingerprints.of(cert);
+        CertificateSummary summary = CertificateSummary.of(cert);
         StringBuilder sb = new StringBuilder();
-        sb.append("Subject ").append(cert.getSubjectDN()).append(newLine);
-        sb.append("   Issuer  ").append(cert.getIssuerDN()).append(newLine);
-        sb.append("   CN      ").append(getCommonName(cert)).append(newLine);
-        sb.append("   From    ").append(cert.getNotBefore().toString()).append(newLine);
-        sb.append("   Util    ").append(cert.getNotAfter().toString()).append(newLine);
+        sb.append("Subject ").append(summary.getSubject()).append(newLine);
+        sb.append("   Issuer  ").append(summary.getIssuer()).append(newLine);
+        sb.append("   CN      ").append(summary.getCommonName()).append(newLine);
+        for (String san : summary.getSubjectAlternativeNames()) {
+            sb.append("   SAN     ").append(san).append(newLine);
+        }
+        sb.append("   From    ").append(summary.getNotBefore()).append(newLine);
+        sb.append("   Util    ").append(summary.getNotAfter()).append(newLine);
         sb.append("   Serial  ").append(cert.getSerialNumber().toString()).append(newLine);
-        if (InstallCert.sha1 != null) {
-            InstallCert.sha1.update(cert.getEncoded());
-            sb.append("   SHA1    ").append(toHexString(InstallCert.sha1.digest())).append(newLine);
+        sb.append("   Key     ").append(summary.getKeyAlgorithm()).append(' ').append(summary.getKeySize()).append(newLine);
+        sb.append("   SHA256  ").append(toHexString(fingerprints.getSha256Bytes())).append(newLine);
+        if (fingerprints.getSha1Bytes() != null) {
+            sb.append("   SHA1    ").append(toHexString(fingerprints.getSha1Bytes())).append(newLine);
         }
-        if (InstallCert.md5 != null) {
-            InstallCert.md5.update(cert.getEncoded());
-            sb.append("   MD5     ").append(toHexString(InstallCert.md5.digest())).append(newLine);
+        if (fingerprints.getMd5Bytes() != null) {
+            sb.append("   MD5     ").append(toHexString(fingerprints.getMd5Bytes())).append(newLine);
         }
         return sb.toString();
     }
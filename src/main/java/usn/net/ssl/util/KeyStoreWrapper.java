@@ -6,6 +6,7 @@ package usn.net.ssl.util;
 
 import java.io.File;
 import java.security.KeyStore;
+import java.security.KeyStoreException;
 
 /**
  *
@@ -13,12 +14,56 @@ import java.security.KeyStore;
  */
 public class KeyStoreWrapper {
 
-    private KeyStore store;
+    // -- class Content --------------------------------------------------------
+    /**
+     * The parsed store and its index. Wrappers of byte-identical files share
+     * one instance, see {@link #share(File, char[])}.
+     */
+    private static class Content {
+
+        KeyStore store;
+        volatile TrustStoreIndex index;
+
+        Content(KeyStore store, TrustStoreIndex index) {
+            this.store = store;
+            this.index = index;
+        }
+    } // class Content
+
+    private volatile Content content = new Content(null, null);
     private File keyStoreLocation;
     private char[] keyStorePassword;
+    private String keyStoreType = KeyStore.getDefaultType();
 
+    /**
+     * @return the key store, loaded from {@link #getKeyStoreLocation()} on
+     * first use unless it was given by {@link #setStore(KeyStore)}
+     * @throws IllegalStateException if the store cannot be loaded
+     */
     public KeyStore getStore() {
-        return store;
+        Content c = content;
+        synchronized (c) {
+            if (c.store == null && keyStoreLocation != null) {
+                try {
+                    // the index stays valid, it was built from the same content
+                    c.store = KeyStoreUtilities.getKeyStore(keyStoreLocation, keyStorePassword, keyStoreType);
+                } catch (Exception ex) {
+                    throw new IllegalStateException("cannot load trust store " + keyStoreLocation, ex);
+                }
+            }
+            return c.store;
+        }
+    }
+
+    /**
+     * @return whether the key store itself is in memory, as opposed to only
+     * its index
+     */
+    boolean isLoaded() {
+        Content c = content;
+        synchronized (c) {
+            return c.store != null;
+        }
     }
 
     public void clear() {
@@ -31,7 +76,66 @@ public class KeyStoreWrapper {
     }
 
     public void setStore(KeyStore store) {
-        this.store = store;
+        this.content = new Content(store, null);
+    }
+
+    /**
+     * @return the fingerprint index of the store, built on first use and
+     * shared by all scans until the store is replaced
+     * @throws KeyStoreException
+     */
+    public TrustStoreIndex getIndex() throws KeyStoreException {
+        Content c = content;
+        TrustStoreIndex result = c.index;
+        if (result == null) {
+            synchronized (c) {
+                result = c.index;
+                if (result == null) {
+                    result = new TrustStoreIndex(getStore());
+                    c.index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the store with a fresh copy of the same file, e.g. one that was
+     * reloaded and merged before it was written. The file may now differ from
+     * those of the wrappers this one shared its store with, so this wrapper
+     * stops sharing; the others keep the store they had.
+     *
+     * @param store the reloaded store
+     * @throws KeyStoreException
+     */
+    void reload(KeyStore store) throws KeyStoreException {
+        this.content = new Content(store, new TrustStoreIndex(store));
+    }
+
+    /**
+     * @param index an index of the store at {@link #getKeyStoreLocation()},
+     * used instead of loading the store
+     */
+    void setIndex(TrustStoreIndex index) {
+        this.content = new Content(null, index);
+    }
+
+    /**
+     * Wraps another file with the same content as this one. Both wrappers
+     * share the index and, once loaded, the key store, until either of them
+     * is {@link #reload(KeyStore) reloaded}.
+     *
+     * @param location the other file
+     * @param password its password
+     * @return the new wrapper
+     */
+    KeyStoreWrapper share(File location, char[] password) {
+        KeyStoreWrapper wrapper = new KeyStoreWrapper();
+        wrapper.content = content;
+        wrapper.setKeyStoreLocation(location);
+        wrapper.setKeyStorePassword(password);
+        wrapper.setKeyStoreType(keyStoreType);
+        return wrapper;
     }
 
     public File getKeyStoreLocation() {
@@ -50,6 +154,14 @@ public class KeyStoreWrapper {
         this.keyStorePassword = keyStorePassword;
     }
 
+    public String getKeyStoreType() {
+        return keyStoreType;
+    }
+
+    public void setKeyStoreType(String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other instanceof KeyStoreWrapper) {
@@ -0,0 +1,107 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes scan results as newline delimited JSON, one object per host:
+ * <pre>
+ * {"host":"mx.example.com","port":25,"protocol":"smtp","address":"192.0.2.1",
+ *  "status":"UNTRUSTED","error":null,"chain":[{...}],"untrusted":["3A1F..."]}
+ * </pre>
+ * <code>chain</code> holds a {@link CertificateSummary} per certificate as
+ * presented by the server, <code>untrusted</code> the SHA-256 fingerprints of
+ * those no trust store knows. Every record is written as soon as its host is
+ * done. Instances are thread safe.
+ */
+public class NdjsonReport implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NdjsonReport.class);
+
+    private final Writer out;
+    private final boolean flushEachRecord;
+
+    /**
+     * @param stream the target, closed with this report
+     * @param flushEachRecord whether to flush after every record, e.g. for a
+     * consumer reading a pipe
+     */
+    public NdjsonReport(OutputStream stream, boolean flushEachRecord) {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        this.flushEachRecord = flushEachRecord;
+    }
+
+    /**
+     * @param result a finished scan
+     * @throws IOException
+     */
+    public void write(ScanResult result) throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        ScanTarget target = result.getTarget();
+        json.append("{\"host\":");
+        CertificateSummary.appendString(json, target.getHost());
+        json.append(",\"port\":").append(target.getPort());
+        json.append(",\"protocol\":");
+        CertificateSummary.appendString(json, target.getProtocol());
+        json.append(",\"address\":");
+        CertificateSummary.appendString(json,
+                result.getAddress() == null ? null : result.getAddress().getHostAddress());
+        json.append(",\"status\":");
+        CertificateSummary.appendString(json,
+                result.isFailed() ? "ERROR" : result.getUntrustedCerts().isEmpty() ? "OK" : "UNTRUSTED");
+        json.append(",\"error\":");
+        CertificateSummary.appendString(json, result.isFailed() ? result.getError().toString() : null);
+        json.append(",\"chain\":[");
+        boolean first = true;
+        for (X509Certificate cert : result.getChain()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            try {
+                CertificateSummary.of(cert).appendJson(json);
+            } catch (Exception ex) {
+                LOG.info("cannot summarize " + cert.getSubjectX500Principal() + ": " + ex.getMessage());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+                json.append("null");
+            }
+        }
+        json.append("],\"untrusted\":[");
+        first = true;
+        for (X509Certificate cert : result.getUntrustedCerts()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            try {
+                CertificateSummary.appendString(json, Fingerprints.of(cert).getSha256());
+            } catch (Exception ex) {
+                json.append("null");
+            }
+        }
+        json.append("]}\n");
+        synchronized (out) {
+            out.write(json.toString());
+            if (flushEachRecord) {
+                out.flush();
+            }
+        }
+    } // write
+
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            out.close();
+        }
+    }
+} // class NdjsonReport
@@ -0,0 +1,509 @@
+package usn.net.ssl.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An alternative to the blocking socket handshake of
+ * {@link InstallCert#getCerts(String, int)}: SSL/TLS handshakes are driven by
+ * {@link SSLEngine} over non-blocking {@link SocketChannel}s, multiplexed on
+ * one or a few selector threads, with network buffers borrowed from a pool of
+ * direct buffers. Thousands of handshakes can be in flight against slow or dead
+ * endpoints without a thread for each of them. Certificates are captured by the
+ * {@link InstallCert.SavingTrustManager} of the {@link ScanContext}, exactly
+ * like the blocking path.
+ * <p>
+ * This engine only does plain SSL/TLS, without proxy support and without
+ * STARTTLS. When it could connect but not capture a chain, the caller should
+ * fall back to {@link InstallCert#handshake(ScanContext, java.net.Socket, ScanTarget)}
+ * which knows about STARTTLS.</p>
+ */
+public class NioHandshakeEngine implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NioHandshakeEngine.class);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    //how often the selector threads look for expired handshakes
+    private static final long SWEEP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Notified once per submitted handshake. Called from a worker thread, never
+     * from a selector thread. The workers also run the delegated tasks of the
+     * other handshakes, so a listener must hand the result over without
+     * blocking.
+     */
+    public interface Listener {
+
+        /**
+         * @param context the scan, holding whatever certificates were captured
+         * @param target the target
+         * @param error <code>null</code> if the handshake completed, otherwise
+         * the reason it did not
+         * @param connected <code>true</code> if the TCP connection was
+         * established
+         */
+        void completed(ScanContext context, ScanTarget target, Exception error, boolean connected);
+    } // interface Listener
+
+    private final SelectorLoop[] loops;
+    private final ExecutorService workers;
+    private final DirectBufferPool buffers;
+    private final Semaphore permits;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //the most bytes a single write may send, 0 for no limit; lets tests
+    //force the partial writes a full socket send buffer would cause
+    volatile int maxWrite;
+
+    /**
+     * Creates and starts an engine.
+     *
+     * @param selectorThreads number of selector threads, at least one
+     * @param maxInFlight upper bound of concurrent handshakes,
+     * {@link #submit(ScanContext, ScanTarget, InetAddress, Listener)} blocks
+     * beyond that
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioHandshakeEngine(int selectorThreads, int maxInFlight) throws IOException {
+        if (selectorThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("need at least one selector thread and one handshake in flight");
+        }
+        this.permits = new Semaphore(maxInFlight);
+        int size;
+        try {
+            SSLEngine probe = SSLContext.getDefault().createSSLEngine();
+            size = Math.max(probe.getSession().getPacketBufferSize(), probe.getSession().getApplicationBufferSize());
+        } catch (Exception ex) {
+            size = 17 * 1024;
+        }
+        // three buffers per handshake: network in, network out, application in
+        this.buffers = new DirectBufferPool(size, Math.min(3 * maxInFlight, 3 * 1024));
+        this.workers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                new DaemonThreadFactory("installcert-nio-worker"));
+        this.loops = new SelectorLoop[selectorThreads];
+        DaemonThreadFactory factory = new DaemonThreadFactory("installcert-nio-selector");
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            factory.newThread(loops[i]).start();
+        }
+    }
+
+    /**
+     * @return the number of handshakes currently in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Starts a handshake. Returns as soon as the handshake is queued, the
+     * listener is notified when it is done.
+     *
+     * @param context a scan context without proxy
+     * @param target the target
+     * @param address the resolved address of the target
+     * @param listener notified on completion
+     * @throws InterruptedException while waiting for a free slot
+     */
+    public void submit(ScanContext context, ScanTarget target, InetAddress address, Listener listener)
+            throws InterruptedException {
+        if (context.isProxied()) {
+            throw new IllegalArgumentException("proxies are not supported by the NIO engine");
+        }
+        permits.acquire();
+        inFlight.incrementAndGet();
+        SelectorLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        final Handshake handshake = new Handshake(loop, context, target, address, listener);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                handshake.start();
+            }
+        });
+    }
+
+    /**
+     * Stops the selector threads, failing any handshake still in flight.
+     */
+    @Override
+    public void close() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        workers.shutdown();
+    }
+
+    // -- class SelectorLoop ---------------------------------------------------
+    private final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean open = true;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * runs the given task on this selector thread
+         */
+        void execute(Runnable task) {
+            pending.offer(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.nanoTime();
+            try {
+                while (open) {
+                    selector.select(100);
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((Handshake) key.attachment()).onReady(key);
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastSweep >= SWEEP_INTERVAL) {
+                        lastSweep = now;
+                        for (SelectionKey key : selector.keys()) {
+                            Handshake h = (Handshake) key.attachment();
+                            if (h != null && now - h.deadline > 0) {
+                                h.finish(new SocketTimeoutException(h.connected ? "handshake timed out" : "connect timed out"));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.warn("selector failed: " + ex.getMessage());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            } catch (ClosedSelectorException ex) {
+                // shutting down
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    Handshake h = (Handshake) key.attachment();
+                    if (h != null) {
+                        h.finish(new IOException("engine closed"));
+                    }
+                }
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    // handshakes that never started
+                    task.run();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+        }
+    } // class SelectorLoop
+
+    // -- class Handshake ------------------------------------------------------
+    /**
+     * the state of a single handshake, only touched from its selector thread
+     */
+    private final class Handshake {
+
+        private final SelectorLoop loop;
+        private final ScanContext context;
+        private final ScanTarget target;
+        private final InetAddress address;
+        private final Listener listener;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private long deadline;
+        private long started;
+        private long connectedAt;
+        private boolean connected;
+        private boolean done;
+        private Object flightEvent;
+
+        Handshake(SelectorLoop loop, ScanContext context, ScanTarget target, InetAddress address, Listener listener) {
+            this.loop = loop;
+            this.context = context;
+            this.target = target;
+            this.address = address;
+            this.listener = listener;
+        }
+
+        void start() {
+            started = System.nanoTime();
+            if (!loop.open) {
+                finish(new IOException("engine closed"));
+                return;
+            }
+            deadline = started + TimeUnit.MILLISECONDS.toNanos(context.getConnectionTimeout());
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                boolean now = channel.connect(new InetSocketAddress(address, target.getPort()));
+                key = channel.register(loop.selector, now ? 0 : SelectionKey.OP_CONNECT, this);
+                if (now) {
+                    onConnected();
+                }
+            } catch (Exception ex) {
+                finish(ex);
+            }
+        }
+
+        void onReady(SelectionKey key) {
+            if (done || !key.isValid()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        onConnected();
+                    }
+                } else {
+                    drive();
+                }
+            } catch (Exception ex) {
+                finish(ex);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            connectedAt = System.nanoTime();
+            context.phaseCompleted(target.getHost(), target.getPort(), ScanListener.Phase.CONNECT, "nio", started, true);
+            flightEvent = FlightEvents.get().beginHandshake();
+            deadline = connectedAt + TimeUnit.MILLISECONDS.toNanos(context.getConnectionTimeout());
+            engine = context.getSslContext().createSSLEngine(target.getHost(), target.getPort());
+            engine.setUseClientMode(true);
+            int size = Math.max(engine.getSession().getPacketBufferSize(), engine.getSession().getApplicationBufferSize());
+            if (size <= buffers.getBufferSize()) {
+                netIn = buffers.acquire();
+                netOut = buffers.acquire();
+                appIn = buffers.acquire();
+            } else {
+                netIn = ByteBuffer.allocate(size);
+                netOut = ByteBuffer.allocate(size);
+                appIn = ByteBuffer.allocate(size);
+            }
+            // netOut is kept in read mode, empty
+            netOut.flip();
+            engine.beginHandshake();
+            drive();
+        }
+
+        private void drive() throws IOException {
+            while (!done) {
+                // output left over from a partial write goes out first, the
+                // peer may be waiting for it whatever the engine wants next
+                if (!flush()) {
+                    return;
+                }
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                switch (status) {
+                    case NEED_WRAP:
+                        netOut.clear();
+                        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            flush();
+                            throw new SSLException("connection closed during handshake");
+                        }
+                        break;
+                    case NEED_TASK:
+                        runTasks();
+                        return;
+                    case FINISHED:
+                    case NOT_HANDSHAKING:
+                        finish(null);
+                        return;
+                    case NEED_UNWRAP:
+                    default:
+                        // also NEED_UNWRAP_AGAIN on newer JDKs
+                        if (!unwrap()) {
+                            return;
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Writes pending output. While some of it is left, the key stays
+         * interested in writing only, reading is resumed by
+         * {@link #unwrap()} once everything went out.
+         *
+         * @return true if all pending output was written
+         */
+        private boolean flush() throws IOException {
+            if (netOut.hasRemaining()) {
+                int limit = netOut.limit();
+                if (maxWrite > 0 && netOut.remaining() > maxWrite) {
+                    netOut.limit(netOut.position() + maxWrite);
+                }
+                channel.write(netOut);
+                netOut.limit(limit);
+            }
+            if (netOut.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the handshake can proceed without waiting for the
+         * network
+         */
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    // no interest in application data
+                    appIn.clear();
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn.clear();
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        throw new EOFException("Remote host closed connection during handshake");
+                    }
+                    if (n == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    }
+                    return true;
+                case CLOSED:
+                default:
+                    throw new SSLException("connection closed during handshake");
+            }
+        }
+
+        /**
+         * runs the delegated tasks, certificate validation among them, on a
+         * worker thread and resumes on the selector thread afterwards
+         */
+        private void runTasks() {
+            key.interestOps(0);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable task;
+                    try {
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                    } catch (RuntimeException ex) {
+                        LOG.debug(ex.getMessage(), ex);
+                    }
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (done) {
+                                return;
+                            }
+                            try {
+                                drive();
+                            } catch (Exception ex) {
+                                finish(ex);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        void finish(final Exception error) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+            buffers.release(netIn);
+            buffers.release(netOut);
+            buffers.release(appIn);
+            netIn = netOut = appIn = null;
+            inFlight.decrementAndGet();
+            permits.release();
+            if (connected) {
+                context.phaseCompleted(target.getHost(), target.getPort(), ScanListener.Phase.HANDSHAKE, "nio",
+                        connectedAt, error == null || context.isChainCaptured());
+                if (flightEvent != null) {
+                    FlightEvents.get().endHandshake(flightEvent, target.getHost(), target.getPort(), "tls",
+                            FlightEvents.outcome(context, error != null));
+                }
+            } else {
+                context.phaseCompleted(target.getHost(), target.getPort(), ScanListener.Phase.CONNECT, "nio",
+                        started, false);
+            }
+            final boolean wasConnected = connected;
+            Runnable notify = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.completed(context, target, error, wasConnected);
+                    } catch (RuntimeException ex) {
+                        LOG.warn("handshake listener failed: " + ex.getMessage(), ex);
+                    }
+                }
+            };
+            try {
+                workers.execute(notify);
+            } catch (RuntimeException ex) {
+                // workers already shut down
+                notify.run();
+            }
+        }
+    } // class Handshake
+
+} // class NioHandshakeEngine
@@ -0,0 +1,137 @@
+package usn.net.ssl.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Exports certificates in PEM format, either all into one bundle file or one
+ * file per certificate into a directory.
+ * <p>
+ * A target that is an existing directory, or whose name ends with a path
+ * separator, is a directory: every certificate goes to
+ * <code>&lt;SHA-256 fingerprint&gt;.pem</code> in it. Anything else is a
+ * bundle file, replaced by this export and written through one buffered
+ * {@link FileChannel}. Either way a certificate is written only once, however
+ * many hosts presented it, and no file names are probed.
+ * <p>
+ * Every certificate is preceded by a <code>#</code> comment line naming its
+ * source and subject, which PEM readers such as OpenSSL skip. Instances are
+ * thread safe.
+ */
+public class PemBundle implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Set<String> written = new HashSet<String>();
+
+    /**
+     * @param target the bundle file or directory
+     * @throws IOException if the file cannot be created
+     */
+    public PemBundle(File target) throws IOException {
+        String name = target.getPath();
+        if (target.isDirectory() || name.endsWith("/") || name.endsWith(File.separator)) {
+            directory = Files.createDirectories(target.toPath());
+            channel = null;
+            buffer = null;
+        } else {
+            directory = null;
+            channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * @param cert the certificate
+     * @param source where it came from, e.g. the host name
+     * @return false if the certificate was written before
+     * @throws IOException
+     */
+    public synchronized boolean add(X509Certificate cert, String source) throws IOException {
+        byte[] der;
+        try {
+            der = cert.getEncoded();
+        } catch (CertificateEncodingException ex) {
+            throw new IOException("cannot encode " + cert.getSubjectX500Principal(), ex);
+        }
+        String fingerprint = TrustStoreIndex.fingerprint(der);
+        if (!written.add(fingerprint)) {
+            return false;
+        }
+        byte[] comment = ("# " + source + ": " + cert.getSubjectX500Principal().getName() + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        int length = comment.length + PemEncoder.encodedLength(der.length);
+        if (directory != null) {
+            FileChannel file = FileChannel.open(directory.resolve(fingerprint + ".pem"), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                writeFully(file, encode(ByteBuffer.allocate(length), comment, der));
+            } finally {
+                file.close();
+            }
+            return true;
+        }
+        if (length > buffer.remaining()) {
+            flush();
+        }
+        if (length > buffer.capacity()) {
+            writeFully(channel, encode(ByteBuffer.allocate(length), comment, der));
+        } else {
+            buffer.put(comment);
+            PemEncoder.write(der, buffer);
+        }
+        return true;
+    } // add
+
+    private static ByteBuffer encode(ByteBuffer target, byte[] comment, byte[] der) {
+        target.put(comment);
+        PemEncoder.write(der, target);
+        target.flip();
+        return target;
+    }
+
+    /**
+     * @return the number of distinct certificates written
+     */
+    public synchronized int getCount() {
+        return written.size();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+} // class PemBundle
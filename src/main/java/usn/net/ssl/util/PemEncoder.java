@@ -0,0 +1,126 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes DER encoded certificates in PEM format: Base64 in lines of 64
+ * characters, framed by <code>BEGIN CERTIFICATE</code> and
+ * <code>END CERTIFICATE</code>.
+ * <p>
+ * The Base64 text is produced one line at a time into a small buffer and
+ * written straight to the target, without building the encoded certificate
+ * as a string first.
+ */
+public final class PemEncoder {
+
+    private static final byte[] ALPHABET
+            = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER = "-----BEGIN CERTIFICATE-----\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FOOTER = "-----END CERTIFICATE-----\n".getBytes(StandardCharsets.US_ASCII);
+    // input bytes per line of 64 characters
+    private static final int LINE_BYTES = 48;
+    private static final int LINE_CHARS = 65;
+
+    private PemEncoder() {
+    }
+
+    /**
+     * @param length the length of the DER encoding
+     * @return the length of its PEM encoding, in characters or bytes
+     */
+    public static int encodedLength(int length) {
+        int lines = (length + LINE_BYTES - 1) / LINE_BYTES;
+        return HEADER.length + (length + 2) / 3 * 4 + lines + FOOTER.length;
+    }
+
+    /**
+     * @param der a DER encoded certificate
+     * @param out the target
+     * @throws IOException
+     */
+    public static void write(byte[] der, Writer out) throws IOException {
+        byte[] line = new byte[LINE_CHARS];
+        char[] chars = new char[Math.max(LINE_CHARS, HEADER.length)];
+        writeAscii(HEADER, chars, out);
+        for (int off = 0; off < der.length; off += LINE_BYTES) {
+            int n = encodeLine(der, off, Math.min(LINE_BYTES, der.length - off), line);
+            for (int i = 0; i < n; i++) {
+                chars[i] = (char) line[i];
+            }
+            out.write(chars, 0, n);
+        }
+        writeAscii(FOOTER, chars, out);
+    } // write
+
+    private static void writeAscii(byte[] ascii, char[] chars, Writer out) throws IOException {
+        for (int i = 0; i < ascii.length; i++) {
+            chars[i] = (char) ascii[i];
+        }
+        out.write(chars, 0, ascii.length);
+    }
+
+    /**
+     * @param der a DER encoded certificate
+     * @param out the target, receives US-ASCII
+     * @throws IOException
+     */
+    public static void write(byte[] der, OutputStream out) throws IOException {
+        byte[] line = new byte[LINE_CHARS];
+        out.write(HEADER);
+        for (int off = 0; off < der.length; off += LINE_BYTES) {
+            out.write(line, 0, encodeLine(der, off, Math.min(LINE_BYTES, der.length - off), line));
+        }
+        out.write(FOOTER);
+    } // write
+
+    /**
+     * @param der a DER encoded certificate
+     * @param out the target, receives US-ASCII
+     * @throws BufferOverflowException if there is less room than
+     * {@link #encodedLength(int)}; nothing is written then
+     */
+    public static void write(byte[] der, ByteBuffer out) {
+        if (out.remaining() < encodedLength(der.length)) {
+            throw new BufferOverflowException();
+        }
+        byte[] line = new byte[LINE_CHARS];
+        out.put(HEADER);
+        for (int off = 0; off < der.length; off += LINE_BYTES) {
+            out.put(line, 0, encodeLine(der, off, Math.min(LINE_BYTES, der.length - off), line));
+        }
+        out.put(FOOTER);
+    } // write
+
+    /**
+     * Encodes up to 48 bytes as one line of Base64, with padding if the input
+     * ends here.
+     *
+     * @return the number of bytes in the line, including the line feed
+     */
+    private static int encodeLine(byte[] in, int off, int len, byte[] line) {
+        int pos = 0;
+        int end = off + len;
+        int i = off;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            line[pos++] = ALPHABET[bits >>> 18];
+            line[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+            line[pos++] = ALPHABET[(bits >>> 6) & 0x3f];
+            line[pos++] = ALPHABET[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (in[i] & 0xff) << 16 | (i + 1 < end ? (in[i + 1] & 0xff) << 8 : 0);
+            line[pos++] = ALPHABET[bits >>> 18];
+            line[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+            line[pos++] = i + 1 < end ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            line[pos++] = (byte) '=';
+        }
+        line[pos++] = '\n';
+        return pos;
+    } // encodeLine
+} // class PemEncoder
@@ -1,16 +1,41 @@
 package usn.net.ssl.util;
 
 import java.security.GeneralSecurityException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.postgresql.ssl.WrappedFactory;
 
 /**
+ * The PostgreSQL driver instantiates its SSL factory by class name and passes
+ * it a single string argument, the <code>sslfactoryarg</code>. That argument is
+ * used to look up the scan registered by {@link #register(ScanContext)}.
  *
  * @author AO
  */
 public class PostgresDumperFactory extends WrappedFactory {
 
+    private static final ConcurrentMap<String, ScanContext> contexts = new ConcurrentHashMap<String, ScanContext>();
+
     public PostgresDumperFactory(String arg) throws GeneralSecurityException {
+        ScanContext context = arg == null ? null : contexts.get(arg);
+        if (context == null) {
+            throw new GeneralSecurityException("no scan registered for sslfactoryarg " + arg);
+        }
+        factory = new SavingSSLSocketFactory(context);
+    }
+
+    /**
+     * @param context the scan to make available to the driver
+     * @return the key to pass as <code>sslfactoryarg</code>
+     */
+    static String register(ScanContext context) {
+        String key = UUID.randomUUID().toString();
+        contexts.put(key, context);
+        return key;
+    }
 
-        factory = InstallCert.getContext().getSocketFactory();
+    static void unregister(String key) {
+        contexts.remove(key);
     }
 }
@@ -0,0 +1,158 @@
+package usn.net.ssl.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.net.ssl.SSLException;
+
+/**
+ * Classifies a freshly connected service before any TLS is attempted. An
+ * SSL/TLS server never speaks first, so a server that greets us within a short
+ * window is a plaintext protocol, and the greeting tells which one. A silent
+ * server gets a ClientHello as before.
+ */
+public class ProtocolSniffer {
+
+    private static final int MAX_GREETING = 512;
+
+    // ports where SSL/TLS is expected right away, not worth waiting on
+    private static final Set<Integer> implicitTlsPorts = new HashSet<Integer>(Arrays.asList(
+            443, 465, 563, 636, 853, 990, 992, 993, 994, 995, 3269, 5061, 5223, 5986, 8443, 9443));
+
+    private ProtocolSniffer() {
+    }
+
+    // -- class Greeting -------------------------------------------------------
+    /**
+     * The first line a server sent on its own.
+     */
+    public static class Greeting {
+
+        private final String line;
+        private final String protocol;
+
+        Greeting(String line, String protocol) {
+            this.line = line;
+            this.protocol = protocol;
+        }
+
+        /**
+         * @return the greeting line without the line terminator
+         */
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * @return the protocol name as understood by
+         * {@link Starttls#getByProtocol(String)}, or <code>null</code> if the
+         * greeting is not recognized
+         */
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public String toString() {
+            return line;
+        }
+    } // class Greeting
+
+    /**
+     * @param port a port number
+     * @return true if the port is a well known SSL/TLS port, i.e. HTTPS, SMTPS,
+     * LDAPS, IMAPS, POP3S
+     */
+    public static boolean isImplicitTlsPort(int port) {
+        return implicitTlsPorts.contains(port);
+    }
+
+    /**
+     * Waits for the server to speak first. Nothing is written to the socket,
+     * and no more than the first line is consumed, so a protocol handler can
+     * carry on with the rest of the conversation.
+     *
+     * @param socket a connected socket, its read timeout is restored before
+     * this returns
+     * @param window how long to wait for the first byte, in milliseconds
+     * @param readTimeout how long to wait for the rest of the line
+     * @return the greeting, or <code>null</code> if the server stayed silent
+     * @throws IOException if the server closed the connection, or on a read
+     * error
+     */
+    public static Greeting sniff(Socket socket, int window, int readTimeout) throws IOException {
+        int timeout = socket.getSoTimeout();
+        InputStream in = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        try {
+            socket.setSoTimeout(window);
+            int b;
+            try {
+                b = in.read();
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            socket.setSoTimeout(readTimeout);
+            while (b != -1 && b != '\n' && line.length() < MAX_GREETING) {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                b = in.read();
+            }
+            if (b == -1 && line.length() == 0) {
+                throw new EOFException("connection closed by the server before it sent anything");
+            }
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(timeout);
+            }
+        }
+        return new Greeting(line.toString(), classify(line.toString()));
+    } // sniff
+
+    /**
+     * @param greeting the first line a server sent
+     * @return the protocol name, or <code>null</code> if not recognized
+     */
+    static String classify(String greeting) {
+        if (greeting.startsWith("220 ") || greeting.startsWith("220-")) {
+            return "smtp";
+        }
+        if (greeting.startsWith("+OK")) {
+            return "pop3";
+        }
+        if (greeting.startsWith("* OK") || greeting.startsWith("* PREAUTH")) {
+            return "imap";
+        }
+        return null;
+    } // classify
+
+    /**
+     * Tells whether a failed handshake looks like the server talks something
+     * other than SSL/TLS on the port. The message texts differ between JDK
+     * releases.
+     *
+     * @param e the exception from the handshake
+     * @return true if a STARTTLS protocol is worth a try
+     */
+    public static boolean looksLikePlaintext(IOException e) {
+        if (e instanceof SSLException) {
+            String message = String.valueOf(e.getMessage());
+            if (message.contains("plaintext connection")
+                    || message.contains("Unsupported or unrecognized SSL message")
+                    || message.contains("Remote host terminated the handshake")
+                    || message.contains("Remote host closed connection during handshake")) {
+                return true;
+            }
+            return e.getCause() instanceof EOFException
+                    || e.getCause() instanceof SocketException;
+        }
+        return e instanceof SocketException && "Connection reset".equals(e.getMessage());
+    } // looksLikePlaintext
+} // class ProtocolSniffer
@@ -13,34 +13,72 @@ import org.slf4j.LoggerFactory;
  * An {@link SSLSocketFactory} subclass that takes care of using
  * {@link InstallCert.SavingTrustManager} as {@link X509TrustManager} subclass
  * to collect server certificates and allows creating unconnected sockets, as
- * required by JavaMail protocol handlers. This class is made public in order to
- * allow being configured as the factory to be used by JavaMail properties
- * mechanism, etc.
+ * required by JavaMail protocol handlers. Instances are bound to a single
+ * {@link ScanContext} and can be handed to JavaMail and JNDI directly. This
+ * class is made public in order to allow being configured by class name where
+ * a library insists on that, see {@link #getDefault()}.
  */
 public class SavingSSLSocketFactory
         extends SSLSocketFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(SavingSSLSocketFactory.class);
 
-    SSLSocketFactory factory;
+    private static final ThreadLocal<ScanContext> BOUND = new ThreadLocal<ScanContext>();
 
-    public SavingSSLSocketFactory() throws Exception {
-        try {
-            this.factory = InstallCert.getContext().getSocketFactory();
+    SSLSocketFactory factory;
+    ScanContext context;
 
-        } catch (Exception e) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(e.getMessage(), e);
-            }
-            throw e;
+    public SavingSSLSocketFactory(ScanContext context) {
+        if (context == null) {
+            throw new IllegalArgumentException("scan context cannot be null");
         }
+        this.context = context;
+        this.factory = context.getSocketFactory();
     } // SavingSSLSocketFactory
 
+    /**
+     * Binds a scan to the current thread, for libraries that only accept a
+     * factory class name and obtain the instance through
+     * {@link #getDefault()}, such as JNDI with
+     * <code>java.naming.ldap.factory.socket</code>.
+     *
+     * @param context the scan, or <code>null</code> to unbind
+     */
+    static void bind(ScanContext context) {
+        if (context == null) {
+            BOUND.remove();
+        } else {
+            BOUND.set(context);
+        }
+    } // bind
+
+    /**
+     * @return the scan bound to the current thread, or <code>null</code>
+     */
+    static ScanContext getBound() {
+        return BOUND.get();
+    } // getBound
+
+    /**
+     * @return a factory for the scan bound to the current thread
+     * @throws IllegalStateException if no scan is bound, see
+     * {@link #bind(ScanContext)}
+     */
+    public static SSLSocketFactory getDefault() {
+        ScanContext context = BOUND.get();
+        if (context == null) {
+            LOG.debug("no scan bound to " + Thread.currentThread().getName());
+            throw new IllegalStateException("no scan context bound to the current thread");
+        }
+        return new SavingSSLSocketFactory(context);
+    } // getDefault
+
     // .. javax.net.ssl.SSLSocketFactory methods ...........................
     @Override
     public Socket createSocket(Socket s, String host, int port, boolean autoClose)
             throws IOException {
-        return factory.createSocket(s, host, port, autoClose);
+        context.track(s);
+        return track(factory.createSocket(s, host, port, autoClose));
     } // createSocket
 
     @Override
@@ -58,25 +96,25 @@ public class SavingSSLSocketFactory
     public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
             int localPort)
             throws IOException {
-        return factory.createSocket(address, port, localAddress, localPort);
+        return track(factory.createSocket(address, port, localAddress, localPort));
     } // createSocket
 
     @Override
     public Socket createSocket(InetAddress host, int port)
             throws IOException {
-        return factory.createSocket(host, port);
+        return track(factory.createSocket(host, port));
     } // createSocket
 
     @Override
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
             throws IOException {
-        return factory.createSocket(host, port, localHost, localPort);
+        return track(factory.createSocket(host, port, localHost, localPort));
     } // createSocket
 
     @Override
     public Socket createSocket(String host, int port)
             throws IOException {
-        return factory.createSocket(host, port);
+        return track(factory.createSocket(host, port));
     } // createSocket
 
     /**
@@ -88,7 +126,12 @@ public class SavingSSLSocketFactory
     @Override
     public Socket createSocket()
             throws IOException {
-        return new Socket();
+        return track(new Socket());
     } // createSocket
 
+    private Socket track(Socket socket) {
+        context.track(socket);
+        return socket;
+    } // track
+
 } // class SavingSSLSocketFactory
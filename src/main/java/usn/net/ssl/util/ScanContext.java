@@ -0,0 +1,243 @@
+package usn.net.ssl.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Everything a single scan needs: its own {@link SSLContext} wired to its own
+ * {@link InstallCert.SavingTrustManager}, plus the timeout and proxy settings
+ * in effect when the scan was started. A context is created by
+ * {@link InstallCert#newScanContext()} and handed explicitly to every phase
+ * and to the {@link StarttlsHandler}s, so that any number of scans can run in
+ * parallel on one {@link InstallCert} instance.
+ * <p>
+ * The settings are immutable. The sockets opened on behalf of the scan are
+ * tracked so that {@link #cancel()} can abort a scan that is blocked in I/O.
+ * The phases report their timings to the {@link ScanListener} of the context,
+ * if any.
+ */
+public class ScanContext {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScanContext.class);
+
+    private final SSLContext sslContext;
+    private final InstallCert.SavingTrustManager trustManager;
+    private final int connectionTimeout;
+    private final int overallTimeout;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final int sniffTimeout;
+    private final ScanListener listener;
+    private final Set<Closeable> resources
+            = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private volatile boolean cancelled;
+    private volatile boolean fromCache;
+
+    ScanContext(SSLContext sslContext, InstallCert.SavingTrustManager trustManager,
+            int connectionTimeout, int overallTimeout, String proxyHost, int proxyPort, int sniffTimeout,
+            ScanListener listener) {
+        this.sslContext = sslContext;
+        this.trustManager = trustManager;
+        this.connectionTimeout = connectionTimeout;
+        this.overallTimeout = overallTimeout;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.sniffTimeout = sniffTimeout;
+        this.listener = listener;
+    }
+
+    /**
+     * @return a context that reports to the same trust manager, but can be
+     * cancelled on its own; used to run several attempts against one target
+     * in parallel
+     */
+    ScanContext fork() {
+        return new ScanContext(sslContext, trustManager, connectionTimeout, overallTimeout, proxyHost, proxyPort, sniffTimeout,
+                listener);
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return a socket factory whose sockets report the server certificates
+     * to this context
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return sslContext.getSocketFactory();
+    }
+
+    InstallCert.SavingTrustManager getTrustManager() {
+        return trustManager;
+    }
+
+    /**
+     * @return the untrusted certificates the server sent so far, potentially
+     * empty
+     */
+    public X509Certificate[] getNewCerts() {
+        return trustManager.getNewCerts();
+    }
+
+    /**
+     * @return the chain the server presented, trusted or not, or an empty
+     * array if no handshake got as far as the Certificate message
+     */
+    public X509Certificate[] getCapturedChain() {
+        X509Certificate[] chain = trustManager.getCapturedChain();
+        return chain == null ? new X509Certificate[0] : chain;
+    }
+
+    public boolean isChainCaptured() {
+        return trustManager.getCapturedChain() != null;
+    }
+
+    /**
+     * @return true if the captured chain validated against the trust stores
+     */
+    public boolean isChainTrusted() {
+        return trustManager.isCapturedChainTrusted();
+    }
+
+    /**
+     * @return true if handshakes are aborted once the chain is captured
+     */
+    public boolean isCaptureOnly() {
+        return trustManager.isCaptureOnly();
+    }
+
+    /**
+     * @return connect and read timeout in milliseconds
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * @return timeout in milliseconds for protocol handlers that run
+     * asynchronously
+     */
+    public int getOverallTimeout() {
+        return overallTimeout;
+    }
+
+    /**
+     * @return how long to wait for a server greeting before sending a
+     * ClientHello, in milliseconds; 0 if sniffing is off
+     */
+    public int getSniffTimeout() {
+        return sniffTimeout;
+    }
+
+    /**
+     * @return the HTTPS proxy host, or <code>null</code> if connections are
+     * made directly
+     */
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public boolean isProxied() {
+        return proxyHost != null;
+    }
+
+    /**
+     * @return the listener for phase timings, or <code>null</code>
+     */
+    public ScanListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Reports the end of a phase to the listener, if there is one.
+     *
+     * @param host the target host
+     * @param port the target port
+     * @param phase the phase
+     * @param handler what ran the phase, may be <code>null</code>
+     * @param start {@link System#nanoTime()} when the phase began
+     * @param success whether the phase succeeded
+     */
+    void phaseCompleted(String host, int port, ScanListener.Phase phase, String handler, long start,
+            boolean success) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.phaseCompleted(host, port, phase, handler, System.nanoTime() - start, success);
+        } catch (RuntimeException ex) {
+            LOG.warn("scan listener failed: " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Registers a socket or stream to be closed by {@link #cancel()}. If the
+     * scan is already cancelled, it is closed right away.
+     *
+     * @param resource the resource, ignored if <code>null</code>
+     */
+    void track(Closeable resource) {
+        if (resource == null) {
+            return;
+        }
+        resources.add(resource);
+        if (cancelled) {
+            close(resource);
+        }
+    }
+
+    /**
+     * Aborts the scan by closing every tracked resource, which unblocks any
+     * thread reading from or connecting one of them.
+     */
+    void cancel() {
+        cancelled = true;
+        for (Closeable resource : resources) {
+            close(resource);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the chain was taken from the {@link ChainCache} rather
+     * than from the server
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    void setFromCache(boolean fromCache) {
+        this.fromCache = fromCache;
+    }
+
+    private void close(Closeable resource) {
+        if (resources.remove(resource)) {
+            try {
+                resource.close();
+            } catch (IOException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+}
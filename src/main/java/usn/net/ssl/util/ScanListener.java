@@ -0,0 +1,60 @@
+package usn.net.ssl.util;
+
+/**
+ * Receives a timing event whenever a scan leaves one of its phases, see
+ * {@link InstallCert#setScanListener(ScanListener)}. Events are delivered on
+ * the thread that ran the phase, which may be a batch worker, a STARTTLS race
+ * thread or a selector thread of the {@link NioHandshakeEngine}, so
+ * implementations must be thread safe and must not block. Exceptions thrown by
+ * a listener are logged and otherwise ignored.
+ */
+public interface ScanListener {
+
+    /**
+     * the phases of a scan. They nest: the time of a {@link #STARTTLS}
+     * attempt is also part of the {@link #HANDSHAKE} it falls back from.
+     */
+    enum Phase {
+        /**
+         * name resolution
+         */
+        RESOLVE,
+        /**
+         * TCP connect, to the target or to the proxy
+         */
+        CONNECT,
+        /**
+         * the HTTP CONNECT request to the proxy
+         */
+        PROXY_TUNNEL,
+        /**
+         * waiting for a server greeting, see {@link ProtocolSniffer}
+         */
+        SNIFF,
+        /**
+         * everything after connect up to the captured chain, including any
+         * STARTTLS fallback
+         */
+        HANDSHAKE,
+        /**
+         * a single STARTTLS handler, or a race of all of them
+         */
+        STARTTLS,
+        /**
+         * picking the untrusted certificates from the chain
+         */
+        EVALUATE
+    } // enum Phase
+
+    /**
+     * @param host the target host
+     * @param port the target port
+     * @param phase the phase that ended
+     * @param handler what ran the phase if there is a choice, e.g. the simple
+     * class name of a STARTTLS handler, or what it found, e.g. the protocol of
+     * a sniffed greeting; <code>null</code> otherwise
+     * @param nanos the time spent in the phase
+     * @param success <code>false</code> if the phase failed or timed out
+     */
+    void phaseCompleted(String host, int port, Phase phase, String handler, long nanos, boolean success);
+} // interface ScanListener
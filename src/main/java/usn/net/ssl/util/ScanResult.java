@@ -0,0 +1,87 @@
+package usn.net.ssl.util;
+
+import java.net.InetAddress;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The outcome of scanning a single {@link ScanTarget}. A result either carries
+ * the (potentially empty) set of untrusted certificates, or the error that
+ * stopped the scan.
+ */
+public class ScanResult {
+
+    private final ScanTarget target;
+    private InetAddress address;
+    private X509Certificate[] chain = new X509Certificate[0];
+    private Set<X509Certificate> untrustedCerts = Collections.emptySet();
+    private Exception error;
+
+    public ScanResult(ScanTarget target) {
+        this.target = target;
+    }
+
+    public ScanTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the resolved address, or <code>null</code> if resolution was
+     * left to a proxy or failed
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * @return the certificate chain the server presented, empty if the scan
+     * failed
+     */
+    public X509Certificate[] getChain() {
+        return chain;
+    }
+
+    public void setChain(X509Certificate[] chain) {
+        this.chain = chain == null ? new X509Certificate[0] : chain;
+    }
+
+    /**
+     * @return the certificates that are not known to any configured trust
+     * store, never <code>null</code>
+     */
+    public Set<X509Certificate> getUntrustedCerts() {
+        return untrustedCerts;
+    }
+
+    public void setUntrustedCerts(Set<X509Certificate> untrustedCerts) {
+        this.untrustedCerts = untrustedCerts == null ? Collections.<X509Certificate>emptySet() : untrustedCerts;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public void setError(Exception error) {
+        this.error = error;
+    }
+
+    public boolean isFailed() {
+        return error != null;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null) {
+            return target + "\tERROR\t" + error;
+        }
+        if (untrustedCerts.isEmpty()) {
+            return target + "\tOK";
+        }
+        return target + "\tUNTRUSTED\t" + untrustedCerts.size();
+    }
+}
@@ -0,0 +1,143 @@
+package usn.net.ssl.util;
+
+/**
+ * A single endpoint to pull a certificate chain from, as used by batch mode.
+ * The protocol is optional; when given, it names a STARTTLS protocol (see
+ * {@link Starttls#getByProtocol(String)}) so that the plain TLS attempt can be
+ * skipped.
+ */
+public class ScanTarget {
+
+    public static final int DEFAULT_PORT = 443;
+
+    private final String host;
+    private final int port;
+    private final String protocol;
+
+    public ScanTarget(String host, int port) {
+        this(host, port, null);
+    }
+
+    public ScanTarget(String host, int port, String protocol) {
+        if (host == null || host.trim().isEmpty()) {
+            throw new IllegalArgumentException("host cannot be empty");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("invalid port " + port + " for " + host);
+        }
+        this.host = host.trim();
+        this.port = port;
+        this.protocol = (protocol == null || protocol.trim().isEmpty()) ? null : protocol.trim().toLowerCase();
+    }
+
+    /**
+     * Parses a single inventory line. Accepted forms are
+     * <code>host</code>, <code>host:port</code> and
+     * <code>host:port protocol</code>, where host may be a bracketed IPv6
+     * literal and the protocol may also be separated by a comma.
+     *
+     * @param line the line to parse
+     * @return the target, or <code>null</code> for blank lines and comments
+     * starting with <code>#</code>
+     * @throws IllegalArgumentException if the line cannot be parsed
+     */
+    public static ScanTarget parse(String line) {
+        if (line == null) {
+            return null;
+        }
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        String[] parts = trimmed.split("[\\s,]+");
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("unexpected content in target '" + line + "'");
+        }
+        String protocol = parts.length > 1 ? parts[1] : null;
+        String hostPort = parts[0];
+        String host;
+        String portStr = null;
+        if (hostPort.startsWith("[")) {
+            int end = hostPort.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("unterminated IPv6 literal in target '" + line + "'");
+            }
+            host = hostPort.substring(1, end);
+            if (hostPort.length() > end + 1) {
+                if (hostPort.charAt(end + 1) != ':') {
+                    throw new IllegalArgumentException("unexpected content in target '" + line + "'");
+                }
+                portStr = hostPort.substring(end + 2);
+            }
+        } else {
+            int idx = hostPort.lastIndexOf(':');
+            if (idx >= 0 && hostPort.indexOf(':') == idx) {
+                host = hostPort.substring(0, idx);
+                portStr = hostPort.substring(idx + 1);
+            } else {
+                //no port, or a bare IPv6 literal
+                host = hostPort;
+            }
+        }
+        int port = DEFAULT_PORT;
+        if (portStr != null) {
+            try {
+                port = Integer.parseInt(portStr);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("invalid port in target '" + line + "'");
+            }
+        }
+        return new ScanTarget(host, port, protocol);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the lower case protocol hint, or <code>null</code> if none was
+     * given
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return <code>true</code> if the target is expected to speak SSL/TLS
+     * right away, that is no protocol was given or it is one of "tls", "ssl",
+     * "https", "ldaps" or "ldapgcs"
+     */
+    public boolean isDirectTls() {
+        return protocol == null || "tls".equals(protocol) || "ssl".equals(protocol) || "https".equals(protocol)
+                || "ldaps".equals(protocol) || "ldapgcs".equals(protocol);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof ScanTarget) {
+            ScanTarget o = (ScanTarget) other;
+            return port == o.port && host.equalsIgnoreCase(o.host)
+                    && (protocol == null ? o.protocol == null : protocol.equals(o.protocol));
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 41 * hash + host.toLowerCase().hashCode();
+        hash = 41 * hash + port;
+        hash = 41 * hash + (protocol != null ? protocol.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        String hp = host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+        return protocol == null ? hp : hp + " " + protocol;
+    }
+}
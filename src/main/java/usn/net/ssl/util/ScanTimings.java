@@ -0,0 +1,195 @@
+package usn.net.ssl.util;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link ScanListener} that keeps a latency histogram per phase, and per
+ * phase and handler where a phase names one, e.g. every STARTTLS protocol.
+ * <p>
+ * Recording is a few atomic increments and never allocates once a handler has
+ * been seen, so it can stay on for large batches. The histograms have
+ * logarithmic buckets with eight steps per power of two: percentiles are
+ * exact up to 8 ns and otherwise within 12.5 %, reported as the upper bound of
+ * their bucket.
+ */
+public class ScanTimings implements ScanListener {
+
+    private static final String ALL = "";
+
+    private final Map<Phase, ConcurrentMap<String, Histogram>> histograms
+            = new EnumMap<Phase, ConcurrentMap<String, Histogram>>(Phase.class);
+
+    public ScanTimings() {
+        for (Phase phase : Phase.values()) {
+            ConcurrentMap<String, Histogram> byHandler = new ConcurrentHashMap<String, Histogram>();
+            byHandler.put(ALL, new Histogram());
+            histograms.put(phase, byHandler);
+        }
+    }
+
+    @Override
+    public void phaseCompleted(String host, int port, Phase phase, String handler, long nanos, boolean success) {
+        ConcurrentMap<String, Histogram> byHandler = histograms.get(phase);
+        byHandler.get(ALL).record(nanos, success);
+        if (handler != null) {
+            Histogram histogram = byHandler.get(handler);
+            if (histogram == null) {
+                Histogram created = new Histogram();
+                histogram = byHandler.putIfAbsent(handler, created);
+                if (histogram == null) {
+                    histogram = created;
+                }
+            }
+            histogram.record(nanos, success);
+        }
+    }
+
+    /**
+     * @param phase a phase
+     * @return the histogram of all events of the phase
+     */
+    public Histogram getHistogram(Phase phase) {
+        return histograms.get(phase).get(ALL);
+    }
+
+    /**
+     * @param phase a phase
+     * @param handler a handler as passed to the listener
+     * @return the histogram of the events of the phase run by this handler, or
+     * <code>null</code> if there were none
+     */
+    public Histogram getHistogram(Phase phase, String handler) {
+        return histograms.get(phase).get(handler);
+    }
+
+    /**
+     * @return one line per phase and handler that saw any events, in phase
+     * order, e.g.
+     * <code>handshake  n=120 failed=3 p50=41.0 ms p95=180.4 ms p99=950.3 ms max=1021.7 ms</code>
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<Phase, ConcurrentMap<String, Histogram>> entry : histograms.entrySet()) {
+            Map<String, Histogram> sorted = new TreeMap<String, Histogram>(entry.getValue());
+            for (Map.Entry<String, Histogram> handler : sorted.entrySet()) {
+                Histogram histogram = handler.getValue();
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                String name = entry.getKey().name().toLowerCase();
+                if (!ALL.equals(handler.getKey())) {
+                    name += " " + handler.getKey();
+                }
+                lines.add(String.format("%-40s n=%d failed=%d p50=%.1f ms p95=%.1f ms p99=%.1f ms max=%.1f ms",
+                        name, histogram.getCount(), histogram.getFailures(),
+                        millis(histogram.getPercentile(50)), millis(histogram.getPercentile(95)),
+                        millis(histogram.getPercentile(99)), millis(histogram.getMax())));
+            }
+        }
+        return lines;
+    } // report
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    // -- class Histogram ------------------------------------------------------
+    /**
+     * a lock free latency histogram in nanoseconds
+     */
+    public static class Histogram {
+
+        // 2^SUB_BITS buckets per power of two
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos, boolean success) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * @return the largest value that falls into the bucket
+         */
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long sub = index % SUB_COUNT;
+            long width = 1L << (exponent - SUB_BITS);
+            return ((SUB_COUNT + sub) << (exponent - SUB_BITS)) + width - 1;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the number of events of failed phases
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return the longest time recorded, in nanoseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the time in nanoseconds that this share of the events did
+         * not exceed, 0 if there were none
+         */
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    } // class Histogram
+
+} // class ScanTimings
@@ -1,10 +1,23 @@
 package usn.net.ssl.util;
 
-import com.sun.mail.iap.Protocol;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,16 +31,38 @@ public class Starttls {
     // TODO implement NNTP/STARTTLS (119) some day...
     // TODO implement XMPP/STARTTLS (5222) some day...
     private static final Map<Integer, String> registry = new HashMap<>();
+    private static final Map<String, String> protocols = new HashMap<>();
+    // handlers to retry with when a handler does not understand the server
+    private static final Map<String, String> fallbacks = new HashMap<>();
+    // shared by all scans, the handlers of a race block on I/O most of the time
+    private static final ExecutorService RACE
+            = Executors.newCachedThreadPool(new DaemonThreadFactory("installcert-starttls"));
 
     static {
-        registry.put(25, "usn.net.ssl.util.StarttlsHandlerSMTP");
-        registry.put(110, "usn.net.ssl.util.StarttlsHandlerPOP3");
-        registry.put(143, "usn.net.ssl.util.StarttlsHandlerIMAP");
-        registry.put(389, "usn.net.ssl.util.StarttlsHandlerLDAP");
-        registry.put(636, "usn.net.ssl.util.StarttlsHandlerLDAPS");
-        registry.put(3268, "usn.net.ssl.util.StarttlsHandlerLDAPGC");
-        registry.put(3269, "usn.net.ssl.util.StarttlsHandlerLDAPGCS");
-        registry.put(5432, "usn.net.ssl.util.StarttlsHandlerPOSTGRES");
+        registry.put(25, "usn.net.ssl.util.StarttlsHandlerSMTPNative");
+        registry.put(110, "usn.net.ssl.util.StarttlsHandlerPOP3Native");
+        registry.put(143, "usn.net.ssl.util.StarttlsHandlerIMAPNative");
+        registry.put(389, "usn.net.ssl.util.StarttlsHandlerLDAPNative");
+        registry.put(636, "usn.net.ssl.util.StarttlsHandlerImplicitTLS");
+        registry.put(3268, "usn.net.ssl.util.StarttlsHandlerLDAPNative");
+        registry.put(3269, "usn.net.ssl.util.StarttlsHandlerImplicitTLS");
+        registry.put(5432, "usn.net.ssl.util.StarttlsHandlerPOSTGRESNative");
+
+        fallbacks.put("usn.net.ssl.util.StarttlsHandlerSMTPNative", "usn.net.ssl.util.StarttlsHandlerSMTP");
+        fallbacks.put("usn.net.ssl.util.StarttlsHandlerPOP3Native", "usn.net.ssl.util.StarttlsHandlerPOP3");
+        fallbacks.put("usn.net.ssl.util.StarttlsHandlerIMAPNative", "usn.net.ssl.util.StarttlsHandlerIMAP");
+        fallbacks.put("usn.net.ssl.util.StarttlsHandlerLDAPNative", "usn.net.ssl.util.StarttlsHandlerLDAP");
+        fallbacks.put("usn.net.ssl.util.StarttlsHandlerPOSTGRESNative", "usn.net.ssl.util.StarttlsHandlerPOSTGRES");
+
+        protocols.put("smtp", "usn.net.ssl.util.StarttlsHandlerSMTPNative");
+        protocols.put("pop3", "usn.net.ssl.util.StarttlsHandlerPOP3Native");
+        protocols.put("imap", "usn.net.ssl.util.StarttlsHandlerIMAPNative");
+        protocols.put("ldap", "usn.net.ssl.util.StarttlsHandlerLDAPNative");
+        protocols.put("ldaps", "usn.net.ssl.util.StarttlsHandlerImplicitTLS");
+        protocols.put("ldapgc", "usn.net.ssl.util.StarttlsHandlerLDAPNative");
+        protocols.put("ldapgcs", "usn.net.ssl.util.StarttlsHandlerImplicitTLS");
+        protocols.put("postgres", "usn.net.ssl.util.StarttlsHandlerPOSTGRESNative");
+        protocols.put("postgresql", "usn.net.ssl.util.StarttlsHandlerPOSTGRESNative");
     }
 
     /**
@@ -51,12 +86,48 @@ public class Starttls {
         registry.remove(port);
     }
 
+    /**
+     * registers a new protocol handler by protocol name, as used by the
+     * optional protocol column of batch mode target lists
+     *
+     * @param protocol protocol name, case insensitive
+     * @param impl fullly qualified java class name
+     */
+    public static void registerProtocol(String protocol, String impl) {
+        protocols.put(protocol.toLowerCase(), impl);
+    }
+
+    /**
+     * registers a handler to retry with when the given handler reports a
+     * reply it does not understand by a {@link ProtocolException}
+     *
+     * @param impl fullly qualified java class name of the handler
+     * @param fallback fullly qualified java class name of the fallback
+     */
+    public static void registerFallback(String impl, String fallback) {
+        fallbacks.put(impl, fallback);
+    }
+
+    /**
+     * Look up a protocol handler by protocol name
+     *
+     * @param protocol the protocol name, i.e. "smtp" or "ldap"
+     * @return the handler class name, or <code>null</code> if no handler is
+     * registered under that name
+     */
+    public static String getByProtocol(String protocol) {
+        if (protocol == null) {
+            return null;
+        }
+        return protocols.get(protocol.toLowerCase());
+    } // getByProtocol
+
     /**
      * Guess a protocol with given port number
      *
      * @param port the port number to try
-     * @return a {@link Protocol} enumeration constant, or <code>null</code> if
-     * no appropriate protocol found
+     * @return the handler class name, or <code>null</code> if no appropriate
+     * protocol found
      */
     public static String getByPort(int port) {
         if (registry.containsKey(port)) {
@@ -70,6 +141,7 @@ public class Starttls {
      * extension, either by standard port or by interrogating the user; then
      * obtain the appropriate protocol handler and run it.
      *
+     * @param context the scan to report the certificates to
      * @param host the host to connect to
      * @param port the port to connect to
      * @param proxyTunnel
@@ -77,25 +149,149 @@ public class Starttls {
      * is believed to be successful, <code>false</code> otherwise
      * @throws IOException
      */
-    public static boolean consider(String host, int port, Socket proxyTunnel)
+    public static boolean consider(ScanContext context, String host, int port, Socket proxyTunnel)
             throws IOException, Exception {
         String protocolForPort = getByPort(port);
         if (protocolForPort != null) {
-            return obtainProtocolHandlerAndRun(protocolForPort, host, port, proxyTunnel);
+            return obtainProtocolHandlerAndRun(context, protocolForPort, host, port, proxyTunnel);
         } else {
-            //let's just try everything
-            for (String s : registry.values()) {
-                if (obtainProtocolHandlerAndRun(s, host, port, proxyTunnel)) {
-                    return true;
+            //let's just try everything, at the same time
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = race(context, new LinkedHashSet<String>(registry.values()), host, port, proxyTunnel);
+                return success;
+            } finally {
+                context.phaseCompleted(host, port, ScanListener.Phase.STARTTLS, "race", start, success);
+            }
+        }
+    }
+
+    /**
+     * Runs the given handlers concurrently, each on a fork of the scan. As
+     * soon as one of them succeeds, the others are cancelled by closing their
+     * sockets, so this takes about as long as the fastest protocol rather
+     * than the sum of all timeouts.
+     *
+     * @return <code>true</code> if any of the handlers succeeded
+     */
+    static boolean race(ScanContext context, Collection<String> handlers, final String host,
+            final int port, final Socket proxyTunnel) throws InterruptedException {
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(RACE);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        List<ScanContext> forks = new ArrayList<ScanContext>();
+        for (final String handler : handlers) {
+            final ScanContext fork = context.fork();
+            forks.add(fork);
+            futures.add(completion.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return obtainProtocolHandlerAndRun(fork, handler, host, port, proxyTunnel);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Boolean> done = completion.take();
+                try {
+                    if (done.get()) {
+                        return true;
+                    }
+                } catch (ExecutionException e) {
+                    LOG.info(e.getCause().toString());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(e.getMessage(), e.getCause());
+                    }
                 }
             }
+            return false;
+        } finally {
+            for (ScanContext fork : forks) {
+                fork.cancel();
+            }
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
         }
-        return false;
+    } // race
+
+    /**
+     * Run the STARTTLS handler registered for a given protocol name, skipping
+     * any guessing by port.
+     *
+     * @param context the scan to report the certificates to
+     * @param protocol the protocol name, see {@link #getByProtocol(String)}
+     * @param host the host to connect to
+     * @param port the port to connect to
+     * @param proxyTunnel
+     * @return <code>true</code> if getting a certificate via STARTTLS handler
+     * is believed to be successful, <code>false</code> otherwise
+     * @throws Exception
+     */
+    public static boolean run(ScanContext context, String protocol, String host, int port, Socket proxyTunnel)
+            throws Exception {
+        String handler = getByProtocol(protocol);
+        if (handler == null) {
+            throw new IllegalArgumentException("no STARTTLS handler registered for protocol " + protocol);
+        }
+        return obtainProtocolHandlerAndRun(context, handler, host, port, proxyTunnel);
     }
 
+    /**
+     * Continue a connection whose server greeting was classified by the
+     * {@link ProtocolSniffer}. Handlers that implement
+     * {@link ConnectedStarttlsHandler} carry on with the same socket; for all
+     * others the socket is closed and the handler connects anew.
+     *
+     * @param context the scan to report the certificates to
+     * @param greeting the greeting, with a recognized protocol
+     * @param host the host name
+     * @param port the port the socket is connected to
+     * @param socket the connected socket, always closed when this returns
+     * @param proxyTunnel
+     * @return <code>true</code> if getting a certificate via STARTTLS handler
+     * is believed to be successful, <code>false</code> otherwise
+     * @throws Exception
+     */
+    public static boolean runConnected(ScanContext context, ProtocolSniffer.Greeting greeting, String host,
+            int port, Socket socket, Socket proxyTunnel) throws Exception {
+        StarttlsHandler handler = null;
+        String handlerClassname = getByProtocol(greeting.getProtocol());
+        if (handlerClassname != null) {
+            handler = obtainProtocolHandler(handlerClassname);
+        }
+        if (!(handler instanceof ConnectedStarttlsHandler)) {
+            socket.close();
+            if (handler == null) {
+                return false;
+            }
+            return runTimed(handler, context, host, port, proxyTunnel);
+        }
+        String name = handler.getClass().getSimpleName();
+        long start = System.nanoTime();
+        Object event = FlightEvents.get().beginStarttls();
+        boolean success;
+        try {
+            success = ((ConnectedStarttlsHandler) handler).runConnected(context, host, port, socket, greeting)
+                    || context.isChainCaptured();
+        } catch (ProtocolException e) {
+            socket.close();
+            handlerDone(context, host, port, name, start, event, false);
+            return runFallback(context, handlerClassname, host, port, proxyTunnel, e);
+        } catch (Exception e) {
+            handlerDone(context, host, port, name, start, event, false);
+            throw e;
+        } finally {
+            socket.close();
+        }
+        handlerDone(context, host, port, name, start, event, success);
+        return success;
+    } // runConnected
+
     /**
      * Load a given application specific protocol STARTTLS handler and run it.
      *
+     * @param context the scan to report the certificates to
      * @param handlerClassname the protocol handler name suffix, named after
      * protocol itself
      * @param host the host to connect to
@@ -103,7 +299,107 @@ public class Starttls {
      * @return <code>true</code> if getting a certificate via STARTTLS handler
      * is believed to be successful, <code>false</code> otherwise
      */
-    private static boolean obtainProtocolHandlerAndRun(String handlerClassname, String host, int port, Socket proxyTunnel) throws Exception {
+    private static boolean obtainProtocolHandlerAndRun(ScanContext context, String handlerClassname, String host, int port, Socket proxyTunnel) throws Exception {
+        StarttlsHandler handler = obtainProtocolHandler(handlerClassname);
+        if (handler == null) {
+            return false;
+        }
+        try {
+            return runTimed(handler, context, host, port, proxyTunnel);
+        } catch (ProtocolException e) {
+            return runFallback(context, handlerClassname, host, port, proxyTunnel, e);
+        }
+    } // obtainProtocolHandlerAndRun
+
+    /**
+     * Runs a handler and reports its time to the scan listener and the flight
+     * recorder.
+     */
+    private static boolean runTimed(StarttlsHandler handler, ScanContext context, String host, int port,
+            Socket proxyTunnel) throws Exception {
+        long start = System.nanoTime();
+        Object event = FlightEvents.get().beginStarttls();
+        boolean success = false;
+        try {
+            // a handler may well report failure for a handshake that was
+            // aborted on purpose after the chain was captured
+            success = handler.run(context, host, port, proxyTunnel) || context.isChainCaptured();
+            return success;
+        } finally {
+            handlerDone(context, host, port, handler.getClass().getSimpleName(), start, event, success);
+        }
+    } // runTimed
+
+    /**
+     * Reports the end of a handler run to the scan listener and the flight
+     * recorder.
+     */
+    private static void handlerDone(ScanContext context, String host, int port, String name, long start,
+            Object event, boolean success) {
+        context.phaseCompleted(host, port, ScanListener.Phase.STARTTLS, name, start, success);
+        if (event != null) {
+            FlightEvents.get().endStarttls(event, host, port, name, success);
+        }
+    }
+
+    /**
+     * Retry with the fallback handler registered for a handler that did not
+     * understand the server, if there is one and it can be loaded.
+     */
+    private static boolean runFallback(ScanContext context, String handlerClassname, String host, int port,
+            Socket proxyTunnel, ProtocolException e) throws Exception {
+        String fallbackClassname = fallbacks.get(handlerClassname);
+        StarttlsHandler fallback = fallbackClassname == null ? null : obtainProtocolHandler(fallbackClassname);
+        if (fallback == null) {
+            throw e;
+        }
+        LOG.info(e.getMessage() + ", retrying with " + fallbackClassname);
+        return runTimed(fallback, context, host, port, proxyTunnel);
+    } // runFallback
+
+    /**
+     * Layer SSL/TLS over a connection on which the server just agreed to
+     * start TLS, and run the handshake. For handlers that talk to the server
+     * directly.
+     *
+     * @param context the scan to report the certificates to
+     * @param socket the connected socket, closed when this returns
+     * @param host the host name, for SNI
+     * @param port the port the socket is connected to
+     * @param name the protocol name for log messages
+     * @return <code>true</code> if the handshake completed or the server chain
+     * was captured
+     * @throws IOException on errors other than a failed handshake
+     */
+    static boolean handshake(ScanContext context, Socket socket, String host, int port, String name)
+            throws IOException {
+        SSLSocket sslSocket = (SSLSocket) new SavingSSLSocketFactory(context)
+                .createSocket(socket, host, port, true);
+        try {
+            sslSocket.setSoTimeout(context.getConnectionTimeout());
+            sslSocket.startHandshake();
+            LOG.info("... " + name + " STARTTLS handshake completed ...");
+            return true;
+        } catch (SSLHandshakeException e) {
+            // likely got an unknown certificate, just report it and return
+            // success
+            LOG.info("ERROR on SSL handshake: " + e.toString());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(e.getMessage(), e);
+            }
+            return context.isChainCaptured();
+        } finally {
+            sslSocket.close();
+        }
+    } // handshake
+
+    /**
+     * Load a given application specific protocol STARTTLS handler.
+     *
+     * @param handlerClassname the fully qualified handler class name
+     * @return the handler, or <code>null</code> if it cannot be loaded
+     */
+    private static StarttlsHandler obtainProtocolHandler(String handlerClassname) {
         Class<StarttlsHandler> handlerClass = null;
         try {
             // avoid static linking to JavaMail library and other
@@ -118,13 +414,13 @@ public class Starttls {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(e.getMessage(), e);
             }
-            return false;
+            return null;
         } catch (NoClassDefFoundError e) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(e.getMessage(), e);
             }
             LOG.warn("Could not find a java class or dependency library needed for " + handlerClassname + ". Exception: " + e.getMessage());
-            return false;
+            return null;
         }
         StarttlsHandler handler = null;
         try {
@@ -135,16 +431,16 @@ public class Starttls {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(e.getMessage(), e);
             }
-            return false;
+            return null;
         } catch (IllegalAccessException e) {
             // should not happen...
             LOG.warn(e.getMessage());
             if (LOG.isDebugEnabled()) {
                 LOG.debug(e.getMessage(), e);
             }
-            return false;
+            return null;
         }
-        return handler.run(host, port, proxyTunnel);
-    } // obtainProtocolHandlerAndRun
+        return handler;
+    } // obtainProtocolHandler
 
 } // class Starttls
@@ -10,13 +10,17 @@ public interface StarttlsHandler {
 
     /**
      * Do the application protocol specific actions to initiate a protocol
-     * specific STARTTLS session, starting from a new connection.
+     * specific STARTTLS session, starting from a new connection. The TLS layer
+     * must be created from {@link ScanContext#getSocketFactory()} so that the
+     * server certificates are reported to the scan, and the timeout settings
+     * of the context should be honored.
      *
+     * @param context the scan to report the certificates to
      * @param host the host to connect to
      * @param port the port to connect to
      * @return <code>true</code> if getting a certificate via STARTTLS is
      * believed to be successful, <code>false</code> otherwise
      * @throws java.lang.Exception
      */
-    boolean run(String host, int port, Socket tunnel) throws Exception;
+    boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception;
 } // interface StarttlsHandler
@@ -1,7 +1,6 @@
 package usn.net.ssl.util;
 
 import java.net.Socket;
-import java.security.Security;
 import java.util.Properties;
 
 import javax.mail.AuthenticationFailedException;
@@ -13,8 +12,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * TODO make the timeouts adjustable
- *
  * A {@link StarttlsHandler} implementation for IMAP protocol.
  */
 public class StarttlsHandlerIMAP
@@ -23,8 +20,9 @@ public class StarttlsHandlerIMAP
     private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
 
     @Override
-    public boolean run(String host, int port, Socket tunnel) throws Exception // see http://javamail.kenai.com/nonav/javadocs/com/sun/mail/imap/package-summary.html
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception // see http://javamail.kenai.com/nonav/javadocs/com/sun/mail/imap/package-summary.html
     {
+        this.context = context;
         this.host = host;
         this.port = port;
 
@@ -37,6 +35,7 @@ public class StarttlsHandlerIMAP
 
     } // run
     boolean returnValue = false;
+    ScanContext context;
     String host = "";
     int port = 0;
 
@@ -45,18 +44,20 @@ public class StarttlsHandlerIMAP
         LOG.info("... trying IMAP with STARTTLS extension ...");
         Properties mailProps = new Properties();
         mailProps.put("mail.store.protocol", "imap");
-        mailProps.put("mail.imap.socketFactory.class",
-                "javax.net.ssl.SSLSocketFactory");
-        mailProps.put("mail.imap.connectionpooltimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.socketFactory.fallback", "false");
+        mailProps.put("mail.imap.connectionpooltimeout", context.getConnectionTimeout() + "");
+        mailProps.put("mail.imap.connectiontimeout", context.getConnectionTimeout() + "");
+        mailProps.put("mail.imap.timeout", context.getConnectionTimeout() + "");
         mailProps.put("mail.imap.starttls.enable", "true");
-        mailProps.put("mail.imaps.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        Security.setProperty("ssl.SocketFactory.provider",
-                SavingSSLSocketFactory.class.getName());
+        mailProps.put("mail.imap.starttls.required", "true");
+        // the factory instance is used for the STARTTLS layer only, the
+        // initial connection is plain
+        mailProps.put("mail.imap.ssl.socketFactory", new SavingSSLSocketFactory(context));
+        // the plain connection, tracked so that the scan can be cancelled
+        mailProps.put("mail.imap.socketFactory", new TrackingSocketFactory(context));
+        mailProps.put("mail.imap.socketFactory.fallback", "false");
 
-        Session mailSession = Session.getDefaultInstance(mailProps);
+        // a private session, the default one is shared JVM wide
+        Session mailSession = Session.getInstance(mailProps);
         Store store = null;
         try {
             store = mailSession.getStore("imap");
@@ -0,0 +1,58 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * A {@link StarttlsHandler} implementation for IMAP protocol that talks to the
+ * server directly, see RFC 3501. {@link StarttlsHandlerIMAP} is the JavaMail
+ * based fallback.
+ */
+public class StarttlsHandlerIMAPNative extends TextStarttlsHandler {
+
+    @Override
+    protected String getName() {
+        return "IMAP";
+    }
+
+    @Override
+    protected boolean negotiate(String host, ProtocolSniffer.Greeting greeting,
+            InputStream in, OutputStream out) throws IOException {
+        String line = greeting.getLine();
+        if (!line.startsWith("* OK")) {
+            // PREAUTH connections cannot STARTTLS any more
+            if (line.startsWith("* PREAUTH")) {
+                return false;
+            }
+            throw new ProtocolException("unexpected IMAP greeting: " + line);
+        }
+        // the greeting often carries the capabilities already
+        boolean offered = hasStarttls(line);
+        if (!offered) {
+            send(out, "a1 CAPABILITY");
+            while (!(line = expectLine(in)).startsWith("a1 ")) {
+                if (line.startsWith("* CAPABILITY") && hasStarttls(line)) {
+                    offered = true;
+                }
+            }
+            if (!line.startsWith("a1 OK")) {
+                throw new ProtocolException("unexpected IMAP reply to CAPABILITY: " + line);
+            }
+        }
+        if (!offered) {
+            send(out, "a3 LOGOUT");
+            return false;
+        }
+        send(out, "a2 STARTTLS");
+        while ((line = expectLine(in)).startsWith("* ")) {
+            // untagged responses before the tagged one
+        }
+        return line.startsWith("a2 OK");
+    } // negotiate
+
+    private static boolean hasStarttls(String line) {
+        return (" " + line.toUpperCase().replace('[', ' ').replace(']', ' ') + " ").contains(" STARTTLS ");
+    } // hasStarttls
+} // class StarttlsHandlerIMAPNative
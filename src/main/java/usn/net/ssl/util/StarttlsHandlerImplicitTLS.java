@@ -0,0 +1,28 @@
+package usn.net.ssl.util;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StarttlsHandler} implementation for services that speak SSL/TLS
+ * right away, such as LDAPS and the LDAPS global catalog. There is nothing to
+ * negotiate, the handshake starts on a fresh connection.
+ */
+public class StarttlsHandlerImplicitTLS implements StarttlsHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
+
+    @Override
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+        LOG.info("... trying SSL/TLS handshake on " + host + ":" + port + " ...");
+        Socket socket = new TrackingSocketFactory(context).createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+            return Starttls.handshake(context, socket, host, port, "SSL/TLS");
+        } finally {
+            socket.close();
+        }
+    } // run
+} // class StarttlsHandlerImplicitTLS
@@ -10,7 +10,6 @@ import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,10 +22,7 @@ public class StarttlsHandlerLDAP
 
     private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
 
-    private SSLContext sslContext;
-
     public StarttlsHandlerLDAP() {
-        this.sslContext = InstallCert.getContext();
     }
 
     public String getUrlPrefix() {
@@ -34,7 +30,7 @@ public class StarttlsHandlerLDAP
     }
 
     @Override
-    public boolean run(String host, int port, Socket tunnel) throws Exception // see http://docs.oracle.com/javase/jndi/tutorial/ldap/ext/starttls.html
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception // see http://docs.oracle.com/javase/jndi/tutorial/ldap/ext/starttls.html
     // see http://docs.oracle.com/javase/7/docs/technotes/guides/jndi/jndi-ldap.html
     {
         LOG.info("... trying LDAP with STARTTLS extension ...");
@@ -42,16 +38,26 @@ public class StarttlsHandlerLDAP
         Hashtable<String, String> env = new Hashtable<String, String>();
         env.put(Context.INITIAL_CONTEXT_FACTORY,
                 "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put("com.sun.jndi.ldap.connect.timeout", TimeoutSettings.getConnectionTimeout() + ""); // in ms
-        env.put("com.sun.jndi.ldap.read.timeout", TimeoutSettings.getConnectionTimeout() + ""); // in ms
+        env.put("com.sun.jndi.ldap.connect.timeout", context.getConnectionTimeout() + ""); // in ms
+        env.put("com.sun.jndi.ldap.read.timeout", context.getConnectionTimeout() + ""); // in ms
         env.put(Context.PROVIDER_URL, getUrlPrefix() + host + ":" + port + "/");
+        boolean implicitTls = getUrlPrefix().startsWith("ldaps");
+        // JNDI only takes a class name here and calls getDefault() on it
+        // from the connecting thread
+        env.put("java.naming.ldap.factory.socket", implicitTls
+                ? SavingSSLSocketFactory.class.getName() : TrackingSocketFactory.class.getName());
 
         LdapContext ctx = null;
         StartTlsResponse tls = null;
         try {
             try {
                 // create initial context
-                ctx = new InitialLdapContext(env, null);
+                SavingSSLSocketFactory.bind(context);
+                try {
+                    ctx = new InitialLdapContext(env, null);
+                } finally {
+                    SavingSSLSocketFactory.bind(null);
+                }
                 // create the STARTTLS handler object
                 tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
             } catch (Exception e) {
@@ -63,7 +69,7 @@ public class StarttlsHandlerLDAP
 
             // start TLS
             try {
-                tls.negotiate(new SavingSSLSocketFactory());
+                tls.negotiate(new SavingSSLSocketFactory(context));
             } catch (SSLHandshakeException e) {
                 // likely got an unknown certificate, just report it and return
                 // success
@@ -0,0 +1,167 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StarttlsHandler} implementation for LDAP protocol that sends the
+ * StartTLS extended request (RFC 4511, section 4.14) encoded in BER directly
+ * over a socket, without JNDI. Used for the domain controller global catalog
+ * as well. {@link StarttlsHandlerLDAP} is the JNDI based fallback.
+ */
+public class StarttlsHandlerLDAPNative implements StarttlsHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
+
+    static final String STARTTLS_OID = "1.3.6.1.4.1.1466.20037";
+
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_ENUMERATED = 0x0a;
+    private static final int TAG_OCTET_STRING = 0x04;
+    // [APPLICATION 23], constructed
+    private static final int TAG_EXTENDED_REQUEST = 0x77;
+    // [APPLICATION 24], constructed
+    private static final int TAG_EXTENDED_RESPONSE = 0x78;
+    // [0], primitive
+    private static final int TAG_REQUEST_NAME = 0x80;
+
+    private static final int MESSAGE_ID = 1;
+    private static final int MAX_MESSAGE = 64 * 1024;
+
+    @Override
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+        LOG.info("... trying LDAP with STARTTLS extension ...");
+        Socket socket = new TrackingSocketFactory(context).createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+            socket.setSoTimeout(context.getConnectionTimeout());
+            OutputStream out = socket.getOutputStream();
+            out.write(startTlsRequest(MESSAGE_ID));
+            out.flush();
+            int resultCode = readResultCode(socket.getInputStream(), MESSAGE_ID);
+            if (resultCode != 0) {
+                LOG.info("... trying LDAP stopped, StartTLS refused with result code " + resultCode + " ...");
+                return false;
+            }
+            return Starttls.handshake(context, socket, host, port, "LDAP");
+        } finally {
+            socket.close();
+        }
+    } // run
+
+    /**
+     * @param messageId the LDAP message id
+     * @return the BER encoded LDAPMessage carrying the StartTLS request
+     */
+    static byte[] startTlsRequest(int messageId) {
+        byte[] oid = STARTTLS_OID.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream op = new ByteArrayOutputStream();
+        encode(op, TAG_REQUEST_NAME, oid);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        encode(message, TAG_INTEGER, new byte[]{(byte) messageId});
+        encode(message, TAG_EXTENDED_REQUEST, op.toByteArray());
+        ByteArrayOutputStream ber = new ByteArrayOutputStream();
+        encode(ber, TAG_SEQUENCE, message.toByteArray());
+        return ber.toByteArray();
+    } // startTlsRequest
+
+    /**
+     * Reads the ExtendedResponse to our request. A notice of disconnection,
+     * sent with message id 0, is reported with its result code as well.
+     *
+     * @param in the socket input
+     * @param messageId the id the request was sent with
+     * @return the LDAP result code, 0 for success
+     * @throws IOException on a read error, or a {@link ProtocolException} if
+     * the reply is not an LDAP ExtendedResponse
+     */
+    static int readResultCode(InputStream in, int messageId) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        expectTag(data.readUnsignedByte(), TAG_SEQUENCE);
+        byte[] message = new byte[readLength(data)];
+        data.readFully(message);
+
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(message));
+        expectTag(body.readUnsignedByte(), TAG_INTEGER);
+        byte[] id = new byte[readLength(body)];
+        body.readFully(id);
+        int receivedId = 0;
+        for (byte b : id) {
+            receivedId = (receivedId << 8) | (b & 0xff);
+        }
+        if (receivedId != messageId && receivedId != 0) {
+            throw new ProtocolException("unexpected LDAP message id " + receivedId);
+        }
+        expectTag(body.readUnsignedByte(), TAG_EXTENDED_RESPONSE);
+        readLength(body);
+        expectTag(body.readUnsignedByte(), TAG_ENUMERATED);
+        byte[] code = new byte[readLength(body)];
+        body.readFully(code);
+        int resultCode = 0;
+        for (byte b : code) {
+            resultCode = (resultCode << 8) | (b & 0xff);
+        }
+        if (resultCode != 0 && LOG.isDebugEnabled()) {
+            // matchedDN, then the diagnostic message
+            expectTag(body.readUnsignedByte(), TAG_OCTET_STRING);
+            body.skipBytes(readLength(body));
+            expectTag(body.readUnsignedByte(), TAG_OCTET_STRING);
+            byte[] diagnostic = new byte[readLength(body)];
+            body.readFully(diagnostic);
+            LOG.debug("LDAP StartTLS result " + resultCode + ": " + new String(diagnostic, StandardCharsets.UTF_8));
+        }
+        return resultCode;
+    } // readResultCode
+
+    private static void encode(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        out.write(value, 0, value.length);
+    } // encode
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        if (first < 0x80) {
+            return first;
+        }
+        int octets = first & 0x7f;
+        if (octets == 0 || octets > 3) {
+            throw new ProtocolException("unsupported BER length encoding");
+        }
+        int length = 0;
+        for (int i = 0; i < octets; i++) {
+            length = (length << 8) | in.readUnsignedByte();
+        }
+        if (length > MAX_MESSAGE) {
+            throw new ProtocolException("LDAP message too long: " + length);
+        }
+        return length;
+    } // readLength
+
+    private static void expectTag(int tag, int expected) throws ProtocolException {
+        if (tag != expected) {
+            throw new ProtocolException("not an LDAP reply, unexpected BER tag 0x" + Integer.toHexString(tag));
+        }
+    } // expectTag
+} // class StarttlsHandlerLDAPNative
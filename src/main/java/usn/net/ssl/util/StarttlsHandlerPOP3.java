@@ -1,7 +1,6 @@
 package usn.net.ssl.util;
 
 import java.net.Socket;
-import java.security.Security;
 import java.util.Properties;
 
 import javax.mail.AuthenticationFailedException;
@@ -21,13 +20,13 @@ public class StarttlsHandlerPOP3
     private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
 
     @Override
-    public boolean run(String host, int port, Socket tunnel) throws Exception // see http://javamail.kenai.com/nonav/javadocs/com/sun/mail/pop3/package-summary.html
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception // see http://javamail.kenai.com/nonav/javadocs/com/sun/mail/pop3/package-summary.html
     // TODO verify this method against some real POP3/STARTTLS server
     {
+        this.context = context;
         this.host = host;
         this.port = port;
 
-        final int timeout = TimeoutSettings.getOverallTimeout();
         Thread t = new Thread(this);
         t.start();
 
@@ -37,6 +36,7 @@ public class StarttlsHandlerPOP3
     } // run
 
     boolean returnValue = false;
+    ScanContext context;
     String host = "";
     int port = 0;
 
@@ -45,21 +45,20 @@ public class StarttlsHandlerPOP3
         LOG.info("... trying POP3 with STARTTLS extension ...");
         Properties mailProps = new Properties();
         mailProps.put("mail.store.protocol", "pop3");
-        mailProps.put("mail.pop3.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-        mailProps.put("mail.pop3.socketFactory.fallback", "false");
         mailProps.put("mail.pop3.starttls.enable", "true");
+        mailProps.put("mail.pop3.starttls.required", "true");
+        // the factory instance is used for the STARTTLS layer only, the
+        // initial connection is plain
+        mailProps.put("mail.pop3.ssl.socketFactory", new SavingSSLSocketFactory(context));
+        // the plain connection, tracked so that the scan can be cancelled
+        mailProps.put("mail.pop3.socketFactory", new TrackingSocketFactory(context));
+        mailProps.put("mail.pop3.socketFactory.fallback", "false");
 
-        mailProps.put("mail.smtp.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.smtp.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.pop3.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.pop3.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.connectionpooltimeout", TimeoutSettings.getConnectionTimeout() + "");
+        mailProps.put("mail.pop3.timeout", context.getConnectionTimeout() + "");
+        mailProps.put("mail.pop3.connectiontimeout", context.getConnectionTimeout() + "");
 
-        Security.setProperty("ssl.SocketFactory.provider",
-                SavingSSLSocketFactory.class.getName());
-        Session mailSession = Session.getDefaultInstance(mailProps);
+        // a private session, the default one is shared JVM wide
+        Session mailSession = Session.getInstance(mailProps);
 
         Store store = null;
         try {
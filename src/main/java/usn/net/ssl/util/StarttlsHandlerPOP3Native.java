@@ -0,0 +1,45 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * A {@link StarttlsHandler} implementation for POP3 protocol that talks to the
+ * server directly, see RFC 2595. {@link StarttlsHandlerPOP3} is the JavaMail
+ * based fallback.
+ */
+public class StarttlsHandlerPOP3Native extends TextStarttlsHandler {
+
+    @Override
+    protected String getName() {
+        return "POP3";
+    }
+
+    @Override
+    protected boolean negotiate(String host, ProtocolSniffer.Greeting greeting,
+            InputStream in, OutputStream out) throws IOException {
+        if (!greeting.getLine().startsWith("+OK")) {
+            throw new ProtocolException("unexpected POP3 greeting: " + greeting);
+        }
+        send(out, "CAPA");
+        String line = expectLine(in);
+        if (line.startsWith("+OK")) {
+            boolean offered = false;
+            while (!(line = expectLine(in)).equals(".")) {
+                if (line.trim().equalsIgnoreCase("STLS")) {
+                    offered = true;
+                }
+            }
+            if (!offered) {
+                send(out, "QUIT");
+                return false;
+            }
+        }
+        // without CAPA (RFC 1939 servers), just try
+        send(out, "STLS");
+        line = expectLine(in);
+        return line.startsWith("+OK");
+    } // negotiate
+} // class StarttlsHandlerPOP3Native
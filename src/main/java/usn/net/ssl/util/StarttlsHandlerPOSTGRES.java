@@ -14,7 +14,7 @@ public class StarttlsHandlerPOSTGRES implements StarttlsHandler {
     private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
 
     @Override
-    public boolean run(String host, int port, Socket tunnel) throws Exception {
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
         Object ds = null;
         try {
             ds = Class.forName("org.postgresql.ds.PGSimpleDataSource").newInstance();
@@ -24,12 +24,16 @@ public class StarttlsHandlerPOSTGRES implements StarttlsHandler {
             }
             throw new Exception("Unable to classload postgres jdbc driver. Check to ensure it's on the classpath");
         }
+        String key = PostgresDumperFactory.register(context);
         try {
 
             ds.getClass().getMethod("setServerName", String.class).invoke(ds, host);
             ds.getClass().getMethod("setPortNumber", int.class).invoke(ds, port);
             ds.getClass().getMethod("setSsl", boolean.class).invoke(ds, true);
             ds.getClass().getMethod("setSslfactory", String.class).invoke(ds, "usn.net.ssl.util.PostgresDumperFactory");
+            ds.getClass().getMethod("setSslfactoryarg", String.class).invoke(ds, key);
+            // in seconds
+            ds.getClass().getMethod("setConnectTimeout", int.class).invoke(ds, Math.max(1, context.getConnectionTimeout() / 1000));
             Connection c = (Connection) ds.getClass().getMethod("getConnection").invoke(ds, (Object[]) null);
 
             c.close();
@@ -39,6 +43,8 @@ public class StarttlsHandlerPOSTGRES implements StarttlsHandler {
             if (LOG.isDebugEnabled()) {
                 LOG.debug(ex.getMessage(), ex);
             }
+        } finally {
+            PostgresDumperFactory.unregister(key);
         }
         return false;
     }
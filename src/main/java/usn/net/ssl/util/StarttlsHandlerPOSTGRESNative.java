@@ -0,0 +1,72 @@
+package usn.net.ssl.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StarttlsHandler} implementation for PostgreSQL that sends the
+ * SSLRequest message directly, without a JDBC driver: an 8 byte packet, a
+ * single byte answer, then the TLS handshake. No startup packet is sent and
+ * no authentication is attempted. {@link StarttlsHandlerPOSTGRES} is the
+ * driver based fallback.
+ */
+public class StarttlsHandlerPOSTGRESNative implements StarttlsHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
+
+    // the SSLRequest code, 1234 in the high 16 bits and 5679 in the low
+    static final int SSL_REQUEST_CODE = 80877103;
+
+    @Override
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+        LOG.info("... trying PostgreSQL with SSLRequest ...");
+        Socket socket = new TrackingSocketFactory(context).createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+            socket.setSoTimeout(context.getConnectionTimeout());
+            if (!negotiate(socket.getInputStream(), socket.getOutputStream())) {
+                LOG.info("... trying PostgreSQL stopped, server does not accept SSL ...");
+                return false;
+            }
+            return Starttls.handshake(context, socket, host, port, "PostgreSQL");
+        } finally {
+            socket.close();
+        }
+    } // run
+
+    /**
+     * Sends the SSLRequest and reads the answer, without reading ahead into
+     * the TLS handshake that follows.
+     *
+     * @param in the socket input
+     * @param out the socket output
+     * @return true if the server accepts SSL, false if it does not
+     * @throws IOException on a read error, or a {@link ProtocolException} on
+     * an answer that is neither, e.g. the error response of a server too old
+     * to know SSLRequest
+     */
+    static boolean negotiate(InputStream in, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(8);
+        data.writeInt(SSL_REQUEST_CODE);
+        data.flush();
+        int answer = in.read();
+        switch (answer) {
+            case 'S':
+                return true;
+            case 'N':
+                return false;
+            case -1:
+                throw new ProtocolException("PostgreSQL server closed the connection on SSLRequest");
+            default:
+                throw new ProtocolException("unexpected PostgreSQL reply to SSLRequest: " + answer);
+        }
+    } // negotiate
+} // class StarttlsHandlerPOSTGRESNative
@@ -1,7 +1,6 @@
 package usn.net.ssl.util;
 
 import java.net.Socket;
-import java.security.Security;
 import java.util.Properties;
 
 import javax.mail.MessagingException;
@@ -21,29 +20,25 @@ public class StarttlsHandlerSMTP
     private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
 
     @Override
-    public boolean run(String host, int port, Socket tunnel) throws Exception {
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
         // see http://javamail.kenai.com/nonav/javadocs/com/sun/mail/smtp/package-summary.html
 
         LOG.info("... trying SMTP with STARTTLS extension ...");
         Properties mailProps = new Properties();
         mailProps.put("mail.transport.protocol", "smtp");
-        mailProps.put("mail.smtp.socketFactory.class",
-                "javax.net.ssl.SSLSocketFactory");
-        mailProps.put("mail.smtp.socketFactory.fallback", "false");
         mailProps.put("mail.smtp.starttls.enable", "true");
-        mailProps.put("mail.smtp.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.smtp.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.smtp.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.pop3.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.pop3.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.timeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.connectiontimeout", TimeoutSettings.getConnectionTimeout() + "");
-        mailProps.put("mail.imap.connectionpooltimeout", TimeoutSettings.getConnectionTimeout() + "");
-
-        Security.setProperty("ssl.SocketFactory.provider",
-                SavingSSLSocketFactory.class.getName());
+        mailProps.put("mail.smtp.starttls.required", "true");
+        // the factory instance is used for the STARTTLS layer only, the
+        // initial connection is plain
+        mailProps.put("mail.smtp.ssl.socketFactory", new SavingSSLSocketFactory(context));
+        // the plain connection, tracked so that the scan can be cancelled
+        mailProps.put("mail.smtp.socketFactory", new TrackingSocketFactory(context));
+        mailProps.put("mail.smtp.socketFactory.fallback", "false");
+        mailProps.put("mail.smtp.timeout", context.getConnectionTimeout() + "");
+        mailProps.put("mail.smtp.connectiontimeout", context.getConnectionTimeout() + "");
 
-        Session mailSession = Session.getDefaultInstance(mailProps);
+        // a private session, the default one is shared JVM wide
+        Session mailSession = Session.getInstance(mailProps);
         Transport tr = null;
         try {
             tr = mailSession.getTransport();
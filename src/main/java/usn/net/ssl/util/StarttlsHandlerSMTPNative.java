@@ -0,0 +1,62 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+
+/**
+ * A {@link StarttlsHandler} implementation for SMTP protocol that talks to the
+ * server directly, see RFC 3207. {@link StarttlsHandlerSMTP} is the JavaMail
+ * based fallback.
+ */
+public class StarttlsHandlerSMTPNative extends TextStarttlsHandler {
+
+    // resolved once, a reverse lookup per EHLO costs more than the handshake
+    private static final String LOCAL_NAME = localName();
+
+    @Override
+    protected String getName() {
+        return "SMTP";
+    }
+
+    @Override
+    protected boolean negotiate(String host, ProtocolSniffer.Greeting greeting,
+            InputStream in, OutputStream out) throws IOException {
+        // a multi-line greeting ends with "220 "
+        String line = greeting.getLine();
+        while (line.startsWith("220-")) {
+            line = expectLine(in);
+        }
+        if (!line.startsWith("220")) {
+            throw new ProtocolException("unexpected SMTP greeting: " + line);
+        }
+        send(out, "EHLO " + LOCAL_NAME);
+        boolean offered = false;
+        do {
+            line = expectLine(in);
+            if (!line.startsWith("250")) {
+                throw new ProtocolException("unexpected SMTP reply to EHLO: " + line);
+            }
+            if (line.length() > 4 && line.substring(4).trim().equalsIgnoreCase("STARTTLS")) {
+                offered = true;
+            }
+        } while (line.startsWith("250-"));
+        if (!offered) {
+            send(out, "QUIT");
+            return false;
+        }
+        send(out, "STARTTLS");
+        line = expectLine(in);
+        return line.startsWith("220");
+    } // negotiate
+
+    private static String localName() {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    } // localName
+} // class StarttlsHandlerSMTPNative
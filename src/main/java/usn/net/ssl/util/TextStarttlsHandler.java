@@ -0,0 +1,139 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for STARTTLS handlers of line based text protocols, talking
+ * directly over a socket. A subclass only implements the dialog up to the
+ * point where the server agreed to start TLS; this class connects, reads the
+ * greeting and layers TLS over the socket afterwards.
+ * <p>
+ * Lines are read byte by byte and never buffered ahead, so that nothing of
+ * the TLS handshake that follows the dialog is swallowed. A reply the dialog
+ * does not understand is reported as a {@link ProtocolException}, which makes
+ * {@link Starttls} retry with the JavaMail based handler if available.
+ */
+public abstract class TextStarttlsHandler implements ConnectedStarttlsHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Starttls.class);
+
+    private static final int MAX_LINE = 4096;
+
+    /**
+     * @return the protocol name for log messages
+     */
+    protected abstract String getName();
+
+    /**
+     * Runs the protocol dialog up to STARTTLS.
+     *
+     * @param host the host name
+     * @param greeting the first greeting line, already consumed
+     * @param in the socket input
+     * @param out the socket output
+     * @return true if the server agreed to start TLS, false if it does not
+     * offer or refused STARTTLS
+     * @throws IOException on a read error, or a {@link ProtocolException} on a
+     * reply that does not fit the protocol
+     */
+    protected abstract boolean negotiate(String host, ProtocolSniffer.Greeting greeting,
+            InputStream in, OutputStream out) throws IOException;
+
+    @Override
+    public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+        LOG.info("... trying " + getName() + " with STARTTLS extension ...");
+        Socket socket = new TrackingSocketFactory(context).createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+            socket.setSoTimeout(context.getConnectionTimeout());
+            String line = readLine(socket.getInputStream());
+            if (line == null) {
+                throw new ProtocolException(getName() + " server closed the connection without a greeting");
+            }
+            return dialog(context, host, port, socket,
+                    new ProtocolSniffer.Greeting(line, ProtocolSniffer.classify(line)));
+        } finally {
+            socket.close();
+        }
+    } // run
+
+    @Override
+    public boolean runConnected(ScanContext context, String host, int port, Socket socket,
+            ProtocolSniffer.Greeting greeting) throws Exception {
+        LOG.info("... continuing " + getName() + " with STARTTLS extension ...");
+        context.track(socket);
+        try {
+            socket.setSoTimeout(context.getConnectionTimeout());
+            return dialog(context, host, port, socket, greeting);
+        } finally {
+            socket.close();
+        }
+    } // runConnected
+
+    private boolean dialog(ScanContext context, String host, int port, Socket socket,
+            ProtocolSniffer.Greeting greeting) throws Exception {
+        if (!negotiate(host, greeting, socket.getInputStream(), socket.getOutputStream())) {
+            LOG.info("... trying " + getName() + " stopped, STARTTLS not available ...");
+            return false;
+        }
+        return Starttls.handshake(context, socket, host, port, getName());
+    } // dialog
+
+    /**
+     * Sends a single command line.
+     *
+     * @param out the socket output
+     * @param command the command without line terminator
+     * @throws IOException
+     */
+    protected static void send(OutputStream out, String command) throws IOException {
+        out.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    } // send
+
+    /**
+     * Reads a single line without reading ahead.
+     *
+     * @param in the socket input
+     * @return the line without terminator, or <code>null</code> at the end of
+     * the stream
+     * @throws IOException
+     */
+    protected static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return line.toString();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+            if (line.length() > MAX_LINE) {
+                throw new ProtocolException("line too long");
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    } // readLine
+
+    /**
+     * @param in the socket input
+     * @return the next line, never <code>null</code>
+     * @throws IOException if the server closed the connection
+     */
+    protected String expectLine(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            throw new ProtocolException(getName() + " server closed the connection");
+        }
+        return line;
+    } // expectLine
+} // class TextStarttlsHandler
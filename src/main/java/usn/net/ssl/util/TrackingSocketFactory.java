@@ -0,0 +1,82 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import javax.net.SocketFactory;
+
+/**
+ * A plain {@link SocketFactory} that registers every socket with a
+ * {@link ScanContext}, so that a protocol handler blocked on its initial,
+ * unencrypted connection can be aborted with {@link ScanContext#cancel()}.
+ * The SSL/TLS layer is tracked by {@link SavingSSLSocketFactory}. Public for
+ * the same reason as that class, see {@link #getDefault()}.
+ */
+public class TrackingSocketFactory extends SocketFactory {
+
+    private final ScanContext context;
+
+    public TrackingSocketFactory(ScanContext context) {
+        if (context == null) {
+            throw new IllegalArgumentException("scan context cannot be null");
+        }
+        this.context = context;
+    } // TrackingSocketFactory
+
+    /**
+     * @return a factory for the scan bound to the current thread by
+     * {@link SavingSSLSocketFactory#bind(ScanContext)}
+     * @throws IllegalStateException if no scan is bound
+     */
+    public static SocketFactory getDefault() {
+        ScanContext context = SavingSSLSocketFactory.getBound();
+        if (context == null) {
+            throw new IllegalStateException("no scan context bound to the current thread");
+        }
+        return new TrackingSocketFactory(context);
+    } // getDefault
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(new Socket());
+    } // createSocket
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+        return socket;
+    } // createSocket
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+        return socket;
+    } // createSocket
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+        return socket;
+    } // createSocket
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port), context.getConnectionTimeout());
+        return socket;
+    } // createSocket
+
+    private Socket track(Socket socket) {
+        context.track(socket);
+        return socket;
+    } // track
+
+} // class TrackingSocketFactory
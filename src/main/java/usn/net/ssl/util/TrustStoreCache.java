@@ -0,0 +1,376 @@
+package usn.net.ssl.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk cache of {@link TrustStoreIndex}es of discovered trust stores,
+ * by default in <code>~/.installcert/cache</code>.
+ * <p>
+ * Every entry is keyed by the canonical path, size, modification time and
+ * SHA-256 content hash of the store file. As long as all four match, the
+ * store is not parsed at all: its wrapper gets the cached index, and the key
+ * store itself is only loaded, and the password only checked, once something
+ * is written to it. A store that changed in any way is parsed again and its
+ * entry replaced.
+ * <p>
+ * Within one process, byte-identical files, e.g. the copies of cacerts in
+ * several JDKs of the same release, are parsed once and share one index and
+ * one key store, see {@link KeyStoreWrapper#share(File, char[])}.
+ * <p>
+ * A corrupt or unreadable cache entry is treated like a missing one; the
+ * cache never makes a store unusable. Since a cached index stands in for the
+ * trust anchors of a store, the directory is created accessible to its owner
+ * only, and entries in a directory or in files that are not owned by the
+ * current user, or that others may write, are ignored.
+ */
+public class TrustStoreCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrustStoreCache.class);
+
+    private static final int MAGIC = 0x49434958; // ICIX
+    private static final int VERSION = 2;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private static volatile TrustStoreCache defaultCache = new TrustStoreCache(defaultDirectory());
+
+    private final File directory;
+    // by content hash and type, for as long as this cache lives
+    private final ConcurrentMap<String, FutureTask<KeyStoreWrapper>> loaded
+            = new ConcurrentHashMap<String, FutureTask<KeyStoreWrapper>>();
+
+    /**
+     * @param directory where to keep the cache entries, created on first write,
+     * or <code>null</code> to keep nothing on disk
+     */
+    public TrustStoreCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory given by the <code>installcert.cache</code> system
+     * property, or <code>.installcert/cache</code> in the user's home
+     */
+    public static File defaultDirectory() {
+        String dir = System.getProperty("installcert.cache");
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(new File(System.getProperty("user.home"), ".installcert"), "cache");
+    }
+
+    /**
+     * @return the cache used for trust store discovery
+     */
+    public static TrustStoreCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * @param cache the cache to use for trust store discovery
+     */
+    public static void setDefault(TrustStoreCache cache) {
+        defaultCache = cache;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Wraps a trust store, using the cached index if the file did not change.
+     * Files with the same content, type and password as one wrapped before by
+     * this cache share that wrapper's index and key store.
+     *
+     * @param file the trust store file
+     * @param password the store password, checked only once the store is
+     * actually loaded
+     * @param type the key store type
+     * @return the wrapper, with an index but without a loaded key store
+     * @throws Exception if the store had to be parsed and that failed
+     */
+    public KeyStoreWrapper load(final File file, final char[] password, final String type) throws Exception {
+        File canonical = file.getCanonicalFile();
+        final String path = canonical.getPath();
+        final long size = canonical.length();
+        final long modified = canonical.lastModified();
+        final byte[] content = Files.readAllBytes(canonical.toPath());
+        final byte[] hash = Fingerprints.sha256(content);
+
+        // concurrent loads of identical files wait for the first one
+        FutureTask<KeyStoreWrapper> task = new FutureTask<KeyStoreWrapper>(new Callable<KeyStoreWrapper>() {
+            @Override
+            public KeyStoreWrapper call() throws Exception {
+                return create(file, password, type, path, size, modified, content, hash);
+            }
+        });
+        String key = Fingerprints.toHex(hash) + "/" + type;
+        FutureTask<KeyStoreWrapper> first = loaded.putIfAbsent(key, task);
+        if (first == null) {
+            task.run();
+            try {
+                return get(task);
+            } catch (Exception ex) {
+                // e.g. a wrong password, the next identical file may do better
+                loaded.remove(key, task);
+                throw ex;
+            }
+        }
+        KeyStoreWrapper original;
+        try {
+            original = get(first);
+        } catch (Exception ex) {
+            // that load failed on its own, not necessarily this one
+            return create(file, password, type, path, size, modified, content, hash);
+        }
+        if (!Arrays.equals(password, original.getKeyStorePassword())) {
+            return create(file, password, type, path, size, modified, content, hash);
+        }
+        LOG.info("... truststore '" + path + "' is identical to '" + original.getKeyStoreLocation() + "' ...");
+        return original.share(file, password);
+    } // load
+
+    private static KeyStoreWrapper get(FutureTask<KeyStoreWrapper> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private KeyStoreWrapper create(File file, char[] password, String type, String path, long size,
+            long modified, byte[] content, byte[] hash) throws Exception {
+        KeyStoreWrapper wrapper = new KeyStoreWrapper();
+        wrapper.setKeyStoreLocation(file);
+        wrapper.setKeyStorePassword(password);
+        wrapper.setKeyStoreType(type);
+
+        File entry = directory == null ? null : getEntry(path);
+        TrustStoreIndex index = entry == null ? null : read(entry, path, size, modified, hash);
+        if (index != null) {
+            LOG.info("... using cached index of truststore '" + path + "' ...");
+            wrapper.setIndex(index);
+            return wrapper;
+        }
+
+        LOG.info("... loading system truststore from '" + path + "' ...");
+        KeyStore store = KeyStore.getInstance(type);
+        Object event = FlightEvents.get().beginTrustStore();
+        boolean success = false;
+        try {
+            store.load(new ByteArrayInputStream(content), password);
+            success = true;
+        } finally {
+            if (event != null) {
+                FlightEvents.get().endTrustStore(event, "load", path, success ? store.size() : -1, content.length,
+                        success);
+            }
+        }
+        index = new TrustStoreIndex(store);
+        // only the index is kept, the store is loaded again once it is needed
+        wrapper.setIndex(index);
+        // a file that changed while it was read must not be cached under the
+        // size and time taken before
+        File canonical = new File(path);
+        if (entry != null && canonical.length() == size && canonical.lastModified() == modified) {
+            write(entry, path, size, modified, hash, index);
+        }
+        return wrapper;
+    } // create
+
+    private File getEntry(String path) {
+        return new File(directory, Fingerprints.toHex(
+                Fingerprints.sha256(path.getBytes(StandardCharsets.UTF_8))) + ".idx");
+    }
+
+    private TrustStoreIndex read(File entry, String path, long size, long modified, byte[] hash) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        if (!isPrivate(directory.toPath()) || !isPrivate(entry.toPath())) {
+            LOG.warn("ignoring cache entry " + entry + ", it is not private to " + System.getProperty("user.name"));
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            byte[] cachedHash = new byte[32];
+            if (!path.equals(in.readUTF()) || in.readLong() != size || in.readLong() != modified) {
+                return null;
+            }
+            in.readFully(cachedHash);
+            if (!Arrays.equals(hash, cachedHash)) {
+                return null;
+            }
+            return TrustStoreIndex.read(in);
+        } catch (IOException ex) {
+            LOG.info("ignoring unreadable cache entry " + entry + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // nothing was written
+                }
+            }
+        }
+    } // read
+
+    private void write(File entry, final String path, final long size, final long modified, final byte[] hash,
+            final TrustStoreIndex index) {
+        try {
+            createDirectory();
+            AtomicFile.write(entry.toPath(), false, new AtomicFile.Content() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(path);
+                    out.writeLong(size);
+                    out.writeLong(modified);
+                    out.write(hash);
+                    index.write(out);
+                }
+            });
+        } catch (Exception ex) {
+            LOG.info("cannot cache the index of " + path + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+        }
+    } // write
+
+    /**
+     * creates the directory accessible to the current user only, or makes an
+     * existing one so
+     */
+    private void createDirectory() throws IOException {
+        Path dir = directory.toPath();
+        if (!Files.isDirectory(dir)) {
+            if (POSIX) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createDirectories(dir);
+                // owner only, as far as the platform lets us tell
+                directory.setReadable(false, false);
+                directory.setWritable(false, false);
+                directory.setExecutable(false, false);
+                directory.setReadable(true, true);
+                directory.setWritable(true, true);
+                directory.setExecutable(true, true);
+            }
+        } else if (POSIX && Files.getOwner(dir).equals(currentUser())
+                && !Files.getPosixFilePermissions(dir).equals(OWNER_ONLY)) {
+            Files.setPosixFilePermissions(dir, OWNER_ONLY);
+        }
+        if (!isPrivate(dir)) {
+            throw new IOException(directory + " is not private to " + System.getProperty("user.name"));
+        }
+    } // createDirectory
+
+    /**
+     * @return true if the file is owned by the current user and, where the
+     * platform tells, cannot be written by anybody else
+     */
+    static boolean isPrivate(Path path) {
+        try {
+            if (!Files.getOwner(path).equals(currentUser())) {
+                return false;
+            }
+            if (POSIX) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+                return !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                        && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+            }
+            return true;
+        } catch (IOException ex) {
+            // cannot tell, so do not trust it
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+            return false;
+        } catch (UnsupportedOperationException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+            return false;
+        }
+    } // isPrivate
+
+    private static UserPrincipal currentUser() throws IOException {
+        return FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    /**
+     * Wraps the JRE default trust store, i.e. the one given by the
+     * <code>javax.net.ssl.trustStore</code> system property, or
+     * <code>lib/security/jssecacerts</code> or
+     * <code>lib/security/cacerts</code> in <code>java.home</code>.
+     *
+     * @return the wrapper, or <code>null</code> if there is no such file and
+     * the JRE defaults have to be taken from the trust manager factory
+     */
+    public KeyStoreWrapper loadJreDefaults() {
+        String property = System.getProperty("javax.net.ssl.trustStore");
+        File file;
+        if (property != null) {
+            file = "NONE".equals(property) ? null : new File(property);
+        } else {
+            File security = new File(new File(System.getProperty("java.home"), "lib"), "security");
+            file = new File(security, "jssecacerts");
+            if (!file.isFile()) {
+                file = new File(security, "cacerts");
+            }
+        }
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        String type = System.getProperty("javax.net.ssl.trustStoreType", KeyStore.getDefaultType());
+        String password = System.getProperty("javax.net.ssl.trustStorePassword");
+        try {
+            return load(file, password == null ? null : password.toCharArray(), type);
+        } catch (Exception ex) {
+            LOG.info("cannot load the JRE default truststore " + file + ": " + ex.getMessage());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(ex.getMessage(), ex);
+            }
+            return null;
+        }
+    } // loadJreDefaults
+} // class TrustStoreCache
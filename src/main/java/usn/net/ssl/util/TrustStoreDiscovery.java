@@ -0,0 +1,254 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the trust stores of installed JREs and JDKs below a set of root
+ * directories.
+ * <p>
+ * The directories are walked in parallel, up to {@link #getMaxDepth()} levels
+ * below each root, and every directory that looks like a Java installation
+ * contributes its <code>lib/security/cacerts</code> and
+ * <code>jre/lib/security/cacerts</code>. The stores found are then loaded
+ * concurrently as well, so discovery takes about as long as the slowest
+ * store rather than all of them together. Stores reached through several
+ * paths, e.g. symbolic links in <code>/usr/lib/jvm</code>, are loaded once.
+ */
+public class TrustStoreDiscovery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrustStoreDiscovery.class);
+
+    private static final String[] STORES = {"lib/security/cacerts", "jre/lib/security/cacerts"};
+
+    private static final FileFilter DIRECTORIES = new FileFilter() {
+        @Override
+        public boolean accept(File pathname) {
+            return pathname.isDirectory();
+        }
+    };
+
+    private List<File> roots = defaultRoots();
+    private int maxDepth = 2;
+    private int threads = 8;
+
+    // -- class Walk -----------------------------------------------------------
+    /**
+     * One directory of the walk: the stores found in it, and the directories
+     * still to look at below it.
+     */
+    private static class Walk {
+
+        final List<File> stores = new ArrayList<File>();
+        final List<File> next = new ArrayList<File>();
+        final int depth;
+
+        Walk(int depth) {
+            this.depth = depth;
+        }
+    } // class Walk
+
+    /**
+     * @return the usual installation directories on Windows, Linux and macOS,
+     * plus <code>java.home</code> and <code>JAVA_HOME</code>
+     */
+    public static List<File> defaultRoots() {
+        List<File> roots = new ArrayList<File>();
+        addRoot(roots, System.getenv("ProgramFiles"));
+        addRoot(roots, System.getenv("ProgramFiles(x86)"));
+        addRoot(roots, System.getProperty("java.home"));
+        addRoot(roots, System.getenv("JAVA_HOME"));
+        addRoot(roots, "/usr/lib/jvm");
+        addRoot(roots, "/usr/java");
+        addRoot(roots, "/opt");
+        addRoot(roots, "/Library/Java/JavaVirtualMachines");
+        String home = System.getProperty("user.home");
+        if (home != null) {
+            addRoot(roots, new File(home, ".sdkman/candidates/java").getPath());
+            addRoot(roots, new File(home, ".jdks").getPath());
+            addRoot(roots, new File(home, "Library/Java/JavaVirtualMachines").getPath());
+        }
+        return roots;
+    }
+
+    private static void addRoot(List<File> roots, String path) {
+        if (path != null) {
+            roots.add(new File(path));
+        }
+    }
+
+    public List<File> getRoots() {
+        return roots;
+    }
+
+    public void setRoots(List<File> roots) {
+        this.roots = roots;
+    }
+
+    /**
+     * @return how many directory levels below a root are searched for Java
+     * installations, 2 by default, e.g. <code>Program Files/Java/jdk-17</code>
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @return the number of threads walking directories and loading stores
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Walks the roots and loads every trust store found. A store that cannot
+     * be loaded is logged and skipped.
+     *
+     * @return the trust stores found
+     */
+    public Set<KeyStoreWrapper> discover() {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                new DaemonThreadFactory("installcert-discovery"));
+        try {
+            Set<File> stores = walk(pool);
+            Set<KeyStoreWrapper> ret = load(pool, stores);
+            LOG.info("... found " + ret.size() + " trust store(s) below " + roots.size() + " root(s) in "
+                    + (System.currentTimeMillis() - start) + " ms ...");
+            return ret;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Collections.emptySet();
+        } finally {
+            pool.shutdownNow();
+        }
+    } // discover
+
+    private Set<File> walk(ExecutorService pool) throws InterruptedException {
+        CompletionService<Walk> walks = new ExecutorCompletionService<Walk>(pool);
+        int pending = 0;
+        Set<File> seen = new HashSet<File>();
+        for (File root : roots) {
+            if (root.isDirectory() && seen.add(canonical(root))) {
+                walks.submit(visit(root, 0));
+                pending++;
+            }
+        }
+        // by canonical path, in the order found
+        Set<File> stores = new LinkedHashSet<File>();
+        while (pending > 0) {
+            Walk walk;
+            try {
+                walk = walks.take().get();
+            } catch (ExecutionException ex) {
+                LOG.info("cannot search a discovery root: " + ex.getCause());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+                continue;
+            } finally {
+                pending--;
+            }
+            stores.addAll(walk.stores);
+            for (File dir : walk.next) {
+                if (seen.add(canonical(dir))) {
+                    walks.submit(visit(dir, walk.depth + 1));
+                    pending++;
+                }
+            }
+        }
+        return stores;
+    } // walk
+
+    private Callable<Walk> visit(final File dir, final int depth) {
+        return new Callable<Walk>() {
+            @Override
+            public Walk call() throws Exception {
+                Walk walk = new Walk(depth);
+                // a macOS bundle keeps the installation in Contents/Home
+                File home = new File(dir, "Contents/Home");
+                for (File install : new File[]{dir, home}) {
+                    for (String store : STORES) {
+                        File file = new File(install, store);
+                        if (file.isFile()) {
+                            walk.stores.add(file.getCanonicalFile());
+                        }
+                    }
+                }
+                if (walk.stores.isEmpty() && depth < maxDepth) {
+                    File[] children = dir.listFiles(DIRECTORIES);
+                    if (children != null) {
+                        Collections.addAll(walk.next, children);
+                    }
+                }
+                return walk;
+            }
+        };
+    } // visit
+
+    private static Set<KeyStoreWrapper> load(ExecutorService pool, Set<File> stores) throws InterruptedException {
+        CompletionService<KeyStoreWrapper> loads = new ExecutorCompletionService<KeyStoreWrapper>(pool);
+        for (final File store : stores) {
+            loads.submit(new Callable<KeyStoreWrapper>() {
+                @Override
+                public KeyStoreWrapper call() throws Exception {
+                    return load(store);
+                }
+            });
+        }
+        Set<KeyStoreWrapper> ret = new HashSet<KeyStoreWrapper>();
+        for (int i = 0; i < stores.size(); i++) {
+            try {
+                ret.add(loads.take().get());
+            } catch (ExecutionException ex) {
+                LOG.warn(ex.getCause().getMessage(), ex.getCause());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(ex.getMessage(), ex);
+                }
+            }
+        }
+        return ret;
+    } // load
+
+    /**
+     * @param cacerts a discovered JRE trust store
+     * @return its wrapper, from the {@link TrustStoreCache}
+     * @throws Exception
+     */
+    static KeyStoreWrapper load(File cacerts) throws Exception {
+        // a copy, closing an InstallCert clears the passwords of its stores
+        return TrustStoreCache.getDefault().load(cacerts, InstallCert.DEFAULT.clone(), KeyStore.getDefaultType());
+    } // load
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException ex) {
+            return file.getAbsoluteFile();
+        }
+    }
+} // class TrustStoreDiscovery
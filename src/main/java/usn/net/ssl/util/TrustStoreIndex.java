@@ -0,0 +1,177 @@
+package usn.net.ssl.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The certificates of one {@link KeyStore}, indexed by their SHA-256
+ * fingerprint. Built once per {@link KeyStoreWrapper}, see
+ * {@link KeyStoreWrapper#getIndex()}, and then shared by every scan, so that
+ * "is this certificate known" is a hash lookup rather than a walk over all
+ * entries of the store.
+ * <p>
+ * The index keeps the DER encoding of every certificate, so it can stand in
+ * for the store itself wherever only the certificates are needed, and it can
+ * be persisted by the {@link TrustStoreCache}.
+ */
+public class TrustStoreIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrustStoreIndex.class);
+
+    // -- class Entry ----------------------------------------------------------
+    private static class Entry {
+
+        final String alias;
+        final byte[] encoded;
+
+        Entry(String alias, byte[] encoded) {
+            this.alias = alias;
+            this.encoded = encoded;
+        }
+    } // class Entry
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private TrustStoreIndex() {
+    }
+
+    /**
+     * Indexes every certificate of the store. Like the JDK trust manager
+     * factory, a key entry contributes the first certificate of its chain.
+     *
+     * @param store a loaded key store
+     * @throws KeyStoreException
+     */
+    public TrustStoreIndex(KeyStore store) throws KeyStoreException {
+        Enumeration<String> e = store.aliases();
+        while (e.hasMoreElements()) {
+            String alias = e.nextElement();
+            Certificate cert = store.getCertificate(alias);
+            if (cert instanceof X509Certificate) {
+                try {
+                    add(alias, (X509Certificate) cert);
+                } catch (CertificateEncodingException ex) {
+                    LOG.info("skipping unreadable certificate " + alias + ": " + ex.getMessage());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(ex.getMessage(), ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cert a certificate
+     * @return the alias the certificate is stored under, or <code>null</code>
+     * if it is not in the store
+     */
+    public String getAlias(X509Certificate cert) {
+        try {
+            Entry entry = entries.get(fingerprint(cert));
+            return entry == null ? null : entry.alias;
+        } catch (CertificateEncodingException ex) {
+            return null;
+        }
+    }
+
+    public boolean contains(X509Certificate cert) {
+        return getAlias(cert) != null;
+    }
+
+    /**
+     * Records a certificate that was just added to the store.
+     *
+     * @param alias the alias the certificate was stored under
+     * @param cert the certificate
+     * @throws CertificateEncodingException
+     */
+    public void add(String alias, X509Certificate cert) throws CertificateEncodingException {
+        byte[] encoded = cert.getEncoded();
+        entries.put(fingerprint(encoded), new Entry(alias, encoded));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the fingerprints of all certificates
+     */
+    public Set<String> getFingerprints() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param fingerprint see {@link #fingerprint(byte[])}
+     * @return the DER encoding of the certificate, or <code>null</code>
+     */
+    public byte[] getEncoded(String fingerprint) {
+        Entry entry = entries.get(fingerprint);
+        return entry == null ? null : entry.encoded.clone();
+    }
+
+    /**
+     * @param out the stream to write the index to
+     * @throws IOException
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            out.writeUTF(entry.alias);
+            out.writeInt(entry.encoded.length);
+            out.write(entry.encoded);
+        }
+    }
+
+    /**
+     * @param in a stream written by {@link #write(DataOutputStream)}
+     * @return the index
+     * @throws IOException
+     */
+    static TrustStoreIndex read(DataInputStream in) throws IOException {
+        TrustStoreIndex index = new TrustStoreIndex();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String alias = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > 1024 * 1024) {
+                throw new IOException("corrupt trust store index");
+            }
+            byte[] encoded = new byte[length];
+            in.readFully(encoded);
+            index.entries.put(fingerprint(encoded), new Entry(alias, encoded));
+        }
+        return index;
+    }
+
+    /**
+     * @param cert a certificate
+     * @return the upper case hex SHA-256 fingerprint of the DER encoding, see
+     * {@link Fingerprints#of(X509Certificate)}
+     * @throws CertificateEncodingException
+     */
+    public static String fingerprint(X509Certificate cert) throws CertificateEncodingException {
+        return Fingerprints.of(cert).getSha256();
+    }
+
+    /**
+     * @param encoded a DER encoded certificate
+     * @return the upper case hex SHA-256 fingerprint
+     */
+    public static String fingerprint(byte[] encoded) {
+        return Fingerprints.toHex(Fingerprints.sha256(encoded));
+    }
+}
@@ -0,0 +1,270 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the certificates approved in any number of scans and writes them
+ * to the trust stores of an {@link InstallCert} in one go, see
+ * {@link InstallCert#beginTransaction()}.
+ * <p>
+ * {@link #commit()} writes every store that changed exactly once, however
+ * many hosts contributed, and the stores in parallel. Each store is written
+ * to a temporary file next to it, synced to disk and then renamed over the
+ * original, so a crash leaves either the old or the new store behind, never a
+ * truncated one. The temporary file gets the permissions of the original,
+ * and a store reached through a symbolic link is replaced at the link target.
+ * <p>
+ * Several processes may commit to the same store at once. The write happens
+ * under an exclusive {@link FileLock} on a <code>.lck</code> file next to
+ * the store, which is left in place, and the store is reloaded under that
+ * lock and only the certificates it still lacks are added. Nothing another
+ * process wrote in the meantime is lost.
+ * <p>
+ * {@link #add(Collection, String)} may be called from several threads.
+ */
+public class TrustStoreTransaction {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrustStoreTransaction.class);
+
+    private static final int MAX_WRITERS = 8;
+
+    // monitors by real path of the store, see merge
+    private static final ConcurrentMap<Path, Object> LOCKS = new ConcurrentHashMap<Path, Object>();
+
+    private final InstallCert installer;
+    // by fingerprint, the same certificate may come from several hosts
+    private final Map<String, Map.Entry<String, X509Certificate>> pending
+            = new LinkedHashMap<String, Map.Entry<String, X509Certificate>>();
+
+    TrustStoreTransaction(InstallCert installer) {
+        this.installer = installer;
+    }
+
+    /**
+     * Adds certificates, aliased by host name and common name like
+     * {@link InstallCert#applyChanges(java.util.Set, String)} does. A
+     * certificate already added for another host is skipped.
+     *
+     * @param certs the approved certificates
+     * @param host the host they were obtained from
+     * @throws Exception if a certificate cannot be encoded or its subject
+     * not parsed
+     */
+    public synchronized void add(Collection<X509Certificate> certs, String host) throws Exception {
+        for (X509Certificate cert : certs) {
+            String fingerprint = TrustStoreIndex.fingerprint(cert);
+            if (!pending.containsKey(fingerprint)) {
+                String alias = host + " - " + KeyStoreUtilities.getCommonName(cert);
+                pending.put(fingerprint,
+                        new AbstractMap.SimpleImmutableEntry<String, X509Certificate>(alias, cert));
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct certificates to commit
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Drops all certificates added so far.
+     */
+    public synchronized void rollback() {
+        pending.clear();
+    }
+
+    /**
+     * Adds the pending certificates to every trust store and writes each
+     * store that changed, all of them in parallel. A certificate a store
+     * already contains, under whatever alias, leaves it unchanged, and a
+     * store without changes is neither loaded nor written. A store that
+     * fails does not keep the others from being written; the first failure
+     * is thrown afterwards.
+     *
+     * @throws Exception if there is no trust store, or a store could not be
+     * written
+     */
+    public synchronized void commit() throws Exception {
+        if (pending.isEmpty()) {
+            return;
+        }
+        synchronized (installer) {
+            Collection<KeyStoreWrapper> stores = installer.getTrustStoresToModify();
+            if (stores.isEmpty()) {
+                throw new Exception("must initialize a trust store");
+            }
+            // decided up front, wrappers of identical files share their index
+            Map<KeyStoreWrapper, List<Map.Entry<String, X509Certificate>>> dirty
+                    = new LinkedHashMap<KeyStoreWrapper, List<Map.Entry<String, X509Certificate>>>();
+            for (KeyStoreWrapper wrapper : stores) {
+                List<Map.Entry<String, X509Certificate>> missing = new ArrayList<Map.Entry<String, X509Certificate>>();
+                for (Map.Entry<String, X509Certificate> entry : pending.values()) {
+                    if (!wrapper.getIndex().contains(entry.getValue())) {
+                        missing.add(entry);
+                    }
+                }
+                if (missing.isEmpty()) {
+                    LOG.info("No changes to " + wrapper.getKeyStoreLocation().getAbsolutePath());
+                } else {
+                    dirty.put(wrapper, missing);
+                }
+            }
+            Exception failure = null;
+            if (!dirty.isEmpty()) {
+                ExecutorService pool = Executors.newFixedThreadPool(Math.min(dirty.size(), MAX_WRITERS),
+                        new DaemonThreadFactory("installcert-commit"));
+                try {
+                    List<Future<?>> writes = new ArrayList<Future<?>>();
+                    for (Map.Entry<KeyStoreWrapper, List<Map.Entry<String, X509Certificate>>> e : dirty.entrySet()) {
+                        writes.add(pool.submit(apply(e.getKey(), e.getValue())));
+                    }
+                    for (Future<?> write : writes) {
+                        try {
+                            write.get();
+                        } catch (ExecutionException ex) {
+                            Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                            if (failure == null) {
+                                failure = cause;
+                            } else {
+                                failure.addSuppressed(cause);
+                            }
+                        }
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            // the new certificates are anchors for the following scans
+            installer.trustStoresChanged();
+            pending.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    } // commit
+
+    private static Callable<Void> apply(final KeyStoreWrapper wrapper,
+            final List<Map.Entry<String, X509Certificate>> missing) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                LOG.info("Applying " + missing.size() + " change(s) to "
+                        + wrapper.getKeyStoreLocation().getAbsolutePath());
+                try {
+                    merge(wrapper, missing);
+                    return null;
+                } catch (Exception ex) {
+                    LOG.warn("failed to write " + wrapper.getKeyStoreLocation() + ": " + ex.getMessage());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(ex.getMessage(), ex);
+                    }
+                    throw ex;
+                }
+            }
+        };
+    } // apply
+
+    /**
+     * Under an exclusive lock on the store's lock file, reloads the store
+     * from disk, adds what is still missing and writes it. Entries other
+     * processes added since the store was loaded are kept that way.
+     */
+    private static void merge(KeyStoreWrapper wrapper, List<Map.Entry<String, X509Certificate>> missing)
+            throws Exception {
+        Path target = wrapper.getKeyStoreLocation().toPath();
+        if (Files.exists(target)) {
+            target = target.toRealPath();
+        }
+        // a file lock is held per JVM, threads have to queue up before it
+        Object monitor = LOCKS.putIfAbsent(target, new Object());
+        if (monitor == null) {
+            monitor = LOCKS.get(target);
+        }
+        synchronized (monitor) {
+            Path lockFile = target.resolveSibling(target.getFileName() + ".lck");
+            FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    KeyStore store = Files.exists(target)
+                            ? KeyStoreUtilities.getKeyStore(target.toFile(), wrapper.getKeyStorePassword(),
+                                    wrapper.getKeyStoreType())
+                            : wrapper.getStore();
+                    int added = 0;
+                    for (Map.Entry<String, X509Certificate> entry : missing) {
+                        if (store.getCertificateAlias(entry.getValue()) == null) {
+                            store.setCertificateEntry(entry.getKey(), entry.getValue());
+                            added++;
+                        }
+                    }
+                    if (added > 0) {
+                        write(store, target.toFile(), wrapper.getKeyStorePassword());
+                    } else {
+                        LOG.info("... " + target + " already has the certificates, not written ...");
+                    }
+                    wrapper.reload(store);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    } // merge
+
+    /**
+     * Replaces a key store file atomically.
+     *
+     * @param store the store to write
+     * @param location the file to replace
+     * @param password the store password
+     * @throws Exception
+     */
+    static void write(final KeyStore store, File location, final char[] password) throws Exception {
+        Path target = location.toPath();
+        if (Files.exists(target)) {
+            target = target.toRealPath();
+        }
+        Object event = FlightEvents.get().beginTrustStore();
+        long bytes = -1;
+        try {
+            bytes = AtomicFile.write(target, true, new AtomicFile.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException, GeneralSecurityException {
+                    store.store(out, password);
+                }
+            });
+        } finally {
+            if (event != null) {
+                FlightEvents.get().endTrustStore(event, "write", target.toString(), store.size(), bytes, bytes >= 0);
+            }
+        }
+    } // write
+} // class TrustStoreTransaction
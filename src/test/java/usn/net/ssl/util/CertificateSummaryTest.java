@@ -0,0 +1,62 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class CertificateSummaryTest {
+
+    @Test
+    public void testSummary() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        CertificateSummary summary = CertificateSummary.of(cert);
+        Assert.assertEquals("installcert-test", summary.getCommonName());
+        Assert.assertEquals("CN=installcert-test", summary.getSubject());
+        Assert.assertTrue(summary.isSelfIssued());
+        Assert.assertEquals(Collections.<String>emptyList(), summary.getSubjectAlternativeNames());
+        Assert.assertEquals("RSA", summary.getKeyAlgorithm());
+        Assert.assertEquals(2048, summary.getKeySize());
+        Assert.assertEquals(TrustStoreIndex.fingerprint(cert), summary.getSha256());
+        Assert.assertSame(summary, CertificateSummary.of(SavingTrustManagerTest.chain()[0]));
+    }
+
+    @Test
+    public void testJsonString() {
+        StringBuilder json = new StringBuilder();
+        CertificateSummary.appendString(json, "a\"b\\c\n\u0001");
+        Assert.assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", json.toString());
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        ScanResult result = new ScanResult(new ScanTarget("mx.example.com", 25, "smtp"));
+        result.setChain(chain);
+        result.setUntrustedCerts(new HashSet<X509Certificate>(Arrays.asList(chain)));
+        ScanResult failed = new ScanResult(new ScanTarget("down.example.com", 443));
+        failed.setError(new ConnectException("refused"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NdjsonReport report = new NdjsonReport(out, false);
+        report.write(result);
+        report.write(failed);
+        report.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0], lines[0].startsWith(
+                "{\"host\":\"mx.example.com\",\"port\":25,\"protocol\":\"smtp\",\"address\":null,\"status\":\"UNTRUSTED\""));
+        Assert.assertTrue(lines[0], lines[0].contains("\"cn\":\"installcert-test\""));
+        Assert.assertTrue(lines[0], lines[0].endsWith("\"untrusted\":[\"" + TrustStoreIndex.fingerprint(chain[0]) + "\"]}"));
+        Assert.assertTrue(lines[1], lines[1].contains("\"status\":\"ERROR\",\"error\":\"java.net.ConnectException: refused\",\"chain\":[]"));
+    }
+}
@@ -0,0 +1,130 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class ChainCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExpiryAndEviction() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        long now = System.currentTimeMillis();
+        ChainCache cache = new ChainCache(60000, 2, null);
+        cache.put("a", new ChainCache.Entry(chain, "RSA", now));
+        cache.put("old", new ChainCache.Entry(chain, "RSA", now - 60000));
+        Assert.assertNull(cache.get("old"));
+        cache.put("b", new ChainCache.Entry(chain, "RSA", now));
+        Assert.assertNotNull(cache.get("a"));
+        // b is the least recently used now
+        cache.put("c", new ChainCache.Entry(chain, "RSA", now));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotEquals(ChainCache.key("host", 25, "host", null), ChainCache.key("host", 25, "host", "smtp"));
+        Assert.assertEquals(ChainCache.key("Host", 443, "HOST", null), ChainCache.key("host", 443, "host", null));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        File file = new File(folder.getRoot(), "cache/chains");
+        ChainCache cache = new ChainCache(60000, 10, file);
+        cache.put("a", new ChainCache.Entry(chain, "ECDHE_RSA", System.currentTimeMillis(), true,
+                Collections.<X509Certificate>emptySet(), 3));
+        cache.save();
+
+        ChainCache loaded = new ChainCache(60000, 10, file);
+        ChainCache.Entry entry = loaded.get("a");
+        Assert.assertArrayEquals(chain, entry.getChain());
+        Assert.assertEquals("ECDHE_RSA", entry.getAuthType());
+        // verdicts are only good for the process that reached them
+        Assert.assertEquals(-1, entry.getTrustGeneration());
+        // expired chains are not loaded
+        Thread.sleep(5);
+        Assert.assertEquals(0, new ChainCache(1, 10, file).size());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = server.getLocalPort();
+        // nothing listens, a scan that connects fails
+        server.close();
+        ScanTarget target = new ScanTarget(InetAddress.getLoopbackAddress().getHostAddress(), port);
+
+        InstallCert installer = new InstallCert();
+        installer.setExcludeAllTrustStates(true);
+        ChainCache cache = new ChainCache(60000, 10, null);
+        installer.setChainCache(cache);
+        Assert.assertTrue(installer.scan(target).isFailed());
+
+        String key = ChainCache.key(target.getHost(), port, target.getHost(), null);
+        cache.put(key, new ChainCache.Entry(chain, "RSA", System.currentTimeMillis()));
+        ScanResult result = installer.scan(target);
+        Assert.assertFalse(String.valueOf(result.getError()), result.isFailed());
+        Assert.assertArrayEquals(chain, result.getChain());
+        Assert.assertEquals(Collections.singleton(chain[0]), result.getUntrustedCerts());
+        // validated again and the verdict kept
+        Assert.assertFalse(cache.get(key).isTrusted());
+        Assert.assertEquals(Collections.singleton(chain[0]), cache.get(key).getUntrusted());
+        Assert.assertTrue(cache.get(key).getTrustGeneration() >= 0);
+
+        Assert.assertEquals(Collections.singleton(chain[0]), installer.getCerts(target.getHost(), port));
+        installer.close();
+    }
+
+    @Test
+    public void testVerdictsOfAnotherInstance() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = server.getLocalPort();
+        server.close();
+        ScanTarget target = new ScanTarget(InetAddress.getLoopbackAddress().getHostAddress(), port);
+        ChainCache cache = new ChainCache(60000, 10, null);
+        cache.put(ChainCache.key(target.getHost(), port, target.getHost(), null),
+                new ChainCache.Entry(chain, "RSA", System.currentTimeMillis()));
+
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        store.setCertificateEntry("selfsigned", chain[0]);
+        File file = folder.newFile("cacerts");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            store.store(out, "changeit".toCharArray());
+        } finally {
+            out.close();
+        }
+        InstallCert trusting = new InstallCert();
+        trusting.addTrustStore(file, "changeit".toCharArray());
+        trusting.setChainCache(cache);
+        ScanResult result = trusting.scan(target);
+        Assert.assertFalse(String.valueOf(result.getError()), result.isFailed());
+        Assert.assertTrue(result.getUntrustedCerts().isEmpty());
+
+        // as many changes as the other instance, but it trusts nothing
+        InstallCert distrusting = new InstallCert();
+        distrusting.setExcludeAllTrustStates(true);
+        distrusting.setChainCache(cache);
+        Assert.assertEquals(Collections.singleton(chain[0]), distrusting.scan(target).getUntrustedCerts());
+
+        distrusting.close();
+        trusting.close();
+    }
+}
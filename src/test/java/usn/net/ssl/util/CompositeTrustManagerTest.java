@@ -0,0 +1,51 @@
+package usn.net.ssl.util;
+
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class CompositeTrustManagerTest {
+
+    private static TrustStoreIndex store(X509Certificate... certs) throws Exception {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        for (int i = 0; i < certs.length; i++) {
+            store.setCertificateEntry("cert" + i, certs[i]);
+        }
+        return new TrustStoreIndex(store);
+    }
+
+    @Test
+    public void testEveryStoreIsRespected() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        // the trusting store first, a TrustManagerFactory would only use the last one
+        CompositeTrustManager tm = new CompositeTrustManager(false,
+                Arrays.asList(store(chain[0]), store()));
+        tm.checkServerTrusted(chain, "RSA");
+
+        tm = new CompositeTrustManager(false, Arrays.asList(store(), store(chain[0])));
+        tm.checkServerTrusted(chain, "RSA");
+    }
+
+    @Test
+    public void testAnchorsAreDeduplicated() throws Exception {
+        X509Certificate[] chain = SavingTrustManagerTest.chain();
+        CompositeTrustManager tm = new CompositeTrustManager(false,
+                Arrays.asList(store(chain[0]), store(chain[0])));
+        Assert.assertEquals(1, tm.getAnchorCount());
+    }
+
+    @Test(expected = CertificateException.class)
+    public void testUnknownChainIsRejected() throws Exception {
+        CompositeTrustManager tm = new CompositeTrustManager(true, Collections.<TrustStoreIndex>emptyList());
+        tm.checkServerTrusted(SavingTrustManagerTest.chain(), "RSA");
+    }
+}
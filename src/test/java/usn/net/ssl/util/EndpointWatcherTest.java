@@ -0,0 +1,98 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class EndpointWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPolicy() throws Exception {
+        X509Certificate ca = SavingTrustManagerTest.chain()[0];
+        Set<X509Certificate> untrusted = new HashSet<X509Certificate>(Collections.singleton(ca));
+        Assert.assertTrue(EndpointWatcher.Policy.NONE.select(untrusted).isEmpty());
+        Assert.assertEquals(untrusted, EndpointWatcher.Policy.CA.select(untrusted));
+        Assert.assertEquals(untrusted, EndpointWatcher.Policy.ALL.select(untrusted));
+
+        X509Certificate[] chain = new X509Certificate[]{ca};
+        Assert.assertEquals(EndpointWatcher.chainFingerprint(chain), EndpointWatcher.chainFingerprint(chain));
+        Assert.assertNotEquals(EndpointWatcher.chainFingerprint(chain),
+                EndpointWatcher.chainFingerprint(new X509Certificate[]{ca, ca}));
+    }
+
+    @Test
+    public void testReadTargets() throws Exception {
+        File file = folder.newFile("hosts.txt");
+        Files.write(file.toPath(), Arrays.asList("# inventory", "a.example:443", "b.example:25 smtp",
+                "a.example", "c.example:99999"));
+        Assert.assertEquals(Arrays.asList(new ScanTarget("a.example", 443), new ScanTarget("b.example", 25, "smtp")),
+                EndpointWatcher.readTargets(file));
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = server.getLocalPort();
+        // nothing listens any more, every connect is refused right away
+        server.close();
+        ScanTarget target = new ScanTarget(InetAddress.getLoopbackAddress().getHostAddress(), port);
+
+        final AtomicInteger connects = new AtomicInteger();
+        InstallCert installer = new InstallCert();
+        installer.setScanListener(new ScanListener() {
+            @Override
+            public void phaseCompleted(String host, int port, Phase phase, String handler, long nanos, boolean success) {
+                if (phase == Phase.CONNECT) {
+                    connects.incrementAndGet();
+                }
+            }
+        });
+        final AtomicInteger handled = new AtomicInteger();
+        EndpointWatcher watcher = new EndpointWatcher(installer, 50, 1);
+        watcher.setResultHandler(new BatchResultHandler() {
+            @Override
+            public void handle(ScanResult result) {
+                Assert.assertTrue(result.isFailed());
+                handled.incrementAndGet();
+            }
+        });
+        try {
+            Assert.assertTrue(watcher.check(target).isFailed());
+            Assert.assertTrue(watcher.check(target).isFailed());
+            // the same failure is reported once
+            Assert.assertEquals(1, handled.get());
+
+            watcher.setTargets(Collections.singleton(target));
+            Assert.assertEquals(1, watcher.size());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (connects.get() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(connects.get() >= 5);
+            Assert.assertEquals(1, handled.get());
+
+            watcher.setTargets(Collections.<ScanTarget>emptySet());
+            Assert.assertEquals(0, watcher.size());
+        } finally {
+            watcher.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package usn.net.ssl.util;
+
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class FingerprintsTest {
+
+    @Test
+    public void testDigests() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        Fingerprints fingerprints = Fingerprints.of(cert);
+        byte[] der = cert.getEncoded();
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(der), fingerprints.getSha256Bytes());
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(der), fingerprints.getSha1Bytes());
+        Assert.assertArrayEquals(MessageDigest.getInstance("MD5").digest(der), fingerprints.getMd5Bytes());
+        Assert.assertEquals(fingerprints.getSha256(), Fingerprints.of(der).getSha256());
+        Assert.assertSame(fingerprints, Fingerprints.of(cert));
+        Assert.assertEquals("00 7f 80 ff ", KeyStoreUtilities.toHexString(new byte[]{0, 127, -128, -1}));
+        Assert.assertEquals("007F80FF", Fingerprints.toHex(new byte[]{0, 127, -128, -1}));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final byte[] der = SavingTrustManagerTest.chain()[0].getEncoded();
+        final String expected = Fingerprints.of(der).getSha256();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < 500; j++) {
+                            if (!expected.equals(Fingerprints.of(der).getSha256())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
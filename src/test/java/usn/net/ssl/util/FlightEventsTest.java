@@ -0,0 +1,63 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class FlightEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDisabled() {
+        // no recording, nothing to gather
+        Assert.assertNull(FlightEvents.get().beginHandshake());
+        Assert.assertNull(FlightEvents.get().beginStarttls());
+        Assert.assertNull(FlightEvents.get().beginTrustStore());
+    }
+
+    @Test
+    public void testTrustStoreEvents() throws Exception {
+        File file = new File(folder.getRoot(), "truststore");
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        store.setCertificateEntry("test", SavingTrustManagerTest.chain()[0]);
+
+        Recording recording = new Recording();
+        recording.enable("usn.installcert.TrustStore").withoutThreshold();
+        recording.start();
+        TrustStoreTransaction.write(store, file, "secret".toCharArray());
+        KeyStoreUtilities.getKeyStore(file, "secret".toCharArray());
+        recording.stop();
+        File dump = new File(folder.getRoot(), "recording.jfr");
+        recording.dump(dump.toPath());
+        recording.close();
+
+        List<String> operations = new ArrayList<String>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (!"usn.installcert.TrustStore".equals(event.getEventType().getName())) {
+                continue;
+            }
+            operations.add(event.getString("operation"));
+            Assert.assertEquals(1, event.getInt("entries"));
+            Assert.assertEquals(file.length(), event.getLong("bytes"));
+            Assert.assertTrue(event.getBoolean("success"));
+        }
+        Assert.assertEquals(2, operations.size());
+        Assert.assertEquals("write", operations.get(0));
+        Assert.assertEquals("load", operations.get(1));
+    }
+}
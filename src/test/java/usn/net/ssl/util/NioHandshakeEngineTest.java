@@ -0,0 +1,228 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class NioHandshakeEngineTest {
+
+    private NioHandshakeEngine engine;
+    private InstallCert installer;
+
+    /**
+     * @return a server side context with the self-signed key of the test
+     * resources, CN=localhost
+     */
+    static SSLContext serverContext() throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(serverKeyStore(), "changeit".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return the certificate of {@link #serverContext()}, another one than
+     * {@link SavingTrustManagerTest#chain()}
+     */
+    static X509Certificate serverCertificate() throws Exception {
+        return (X509Certificate) serverKeyStore().getCertificate("server");
+    }
+
+    private static KeyStore serverKeyStore() throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        InputStream in = NioHandshakeEngineTest.class.getResourceAsStream("server.p12");
+        try {
+            store.load(in, "changeit".toCharArray());
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    /**
+     * a server that accepts a single connection on a background thread
+     */
+    private abstract static class OneShotServer extends Thread {
+
+        final ServerSocket server;
+
+        OneShotServer(ServerSocket server) throws Exception {
+            this.server = server;
+            // small buffers, the handshake has to cope with partial reads and writes
+            server.setReceiveBufferSize(1024);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+            setDaemon(true);
+            start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = server.accept();
+                try {
+                    socket.setSendBufferSize(1024);
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (Exception ex) {
+                // closed by the test
+            }
+        }
+
+        abstract void serve(Socket socket) throws Exception;
+
+        void close() throws Exception {
+            server.close();
+            join(5000);
+        }
+    } // class OneShotServer
+
+    /**
+     * the outcome of one handshake on the engine
+     */
+    private static class Outcome implements NioHandshakeEngine.Listener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ScanContext context;
+        Exception error;
+        boolean connected;
+
+        @Override
+        public void completed(ScanContext context, ScanTarget target, Exception error, boolean connected) {
+            this.context = context;
+            this.error = error;
+            this.connected = connected;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            Assert.assertTrue("no result", done.await(10, TimeUnit.SECONDS));
+        }
+    } // class Outcome
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new NioHandshakeEngine(1, 4);
+        installer = new InstallCert();
+        installer.setExcludeAllTrustStates(true);
+        installer.setConnectionTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.close();
+        installer.close();
+    }
+
+    private Outcome handshake(int port) throws Exception {
+        Outcome outcome = new Outcome();
+        engine.submit(installer.newScanContext(), new ScanTarget("localhost", port),
+                InetAddress.getLoopbackAddress(), outcome);
+        outcome.await();
+        return outcome;
+    }
+
+    @Test
+    public void testChainCaptured() throws Exception {
+        SSLServerSocket socket = (SSLServerSocket) serverContext().getServerSocketFactory().createServerSocket();
+        OneShotServer server = new OneShotServer(socket) {
+            @Override
+            void serve(Socket socket) throws Exception {
+                try {
+                    ((SSLSocket) socket).startHandshake();
+                } catch (Exception ex) {
+                    // the client does not trust the key
+                }
+            }
+        };
+        try {
+            Outcome outcome = handshake(server.getPort());
+            Assert.assertTrue(outcome.connected);
+            Assert.assertTrue(String.valueOf(outcome.error), outcome.context.isChainCaptured());
+            Assert.assertFalse(outcome.context.isChainTrusted());
+            Assert.assertEquals("CN=localhost",
+                    outcome.context.getCapturedChain()[0].getSubjectX500Principal().getName());
+            Assert.assertEquals(0, engine.getInFlight());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        // pending output must go out even while the engine waits for input
+        engine.maxWrite = 16;
+        testChainCaptured();
+    }
+
+    @Test
+    public void testServerClosesMidHandshake() throws Exception {
+        OneShotServer server = new OneShotServer(new ServerSocket()) {
+            @Override
+            void serve(Socket socket) throws Exception {
+                // a part of the ClientHello, then hang up
+                socket.getInputStream().read(new byte[16]);
+            }
+        };
+        try {
+            Outcome outcome = handshake(server.getPort());
+            Assert.assertTrue(outcome.connected);
+            Assert.assertFalse(outcome.context.isChainCaptured());
+            // failed right away rather than at the deadline
+            Assert.assertTrue(String.valueOf(outcome.error), outcome.error instanceof IOException);
+            Assert.assertFalse(String.valueOf(outcome.error), outcome.error instanceof SocketTimeoutException);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        OneShotServer server = new OneShotServer(new ServerSocket()) {
+            @Override
+            void serve(Socket socket) throws Exception {
+                // accepts, never answers
+                release.await(10, TimeUnit.SECONDS);
+            }
+        };
+        try {
+            long start = System.nanoTime();
+            Outcome outcome = handshake(server.getPort());
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue(outcome.connected);
+            Assert.assertTrue(String.valueOf(outcome.error), outcome.error instanceof SocketTimeoutException);
+            Assert.assertTrue("timed out after " + millis + " ms", millis >= 900 && millis < 5000);
+            Assert.assertEquals(0, engine.getInFlight());
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+}
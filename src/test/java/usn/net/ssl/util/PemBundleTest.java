@@ -0,0 +1,54 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class PemBundleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBundle() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = new File(folder.getRoot(), "bundle.pem");
+        PemBundle bundle = new PemBundle(file);
+        Assert.assertTrue(bundle.add(cert, "one:443"));
+        Assert.assertFalse(bundle.add(cert, "two:443"));
+        bundle.close();
+        Assert.assertEquals(1, bundle.getCount());
+
+        InputStream in = new FileInputStream(file);
+        try {
+            Collection<? extends Certificate> read = CertificateFactory.getInstance("X.509").generateCertificates(in);
+            Assert.assertEquals(Arrays.asList(cert), read);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File dir = folder.newFolder("certs");
+        PemBundle bundle = new PemBundle(dir);
+        bundle.add(cert, "one:443");
+        bundle.add(cert, "two:443");
+        bundle.close();
+        Assert.assertEquals(Arrays.asList(TrustStoreIndex.fingerprint(cert) + ".pem"), Arrays.asList(dir.list()));
+    }
+}
@@ -0,0 +1,65 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class PemEncoderTest {
+
+    private static String expected(byte[] der) {
+        return "-----BEGIN CERTIFICATE-----\n"
+                + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der)
+                + (der.length == 0 ? "" : "\n")
+                + "-----END CERTIFICATE-----\n";
+    }
+
+    @Test
+    public void testAllLengths() throws Exception {
+        // every padding case, and lines ending exactly at the end of the input
+        for (int length = 0; length <= 200; length++) {
+            byte[] der = new byte[length];
+            for (int i = 0; i < length; i++) {
+                der[i] = (byte) (i * 31 + length);
+            }
+            String pem = expected(der);
+            Assert.assertEquals(pem.length(), PemEncoder.encodedLength(length));
+
+            StringWriter writer = new StringWriter();
+            PemEncoder.write(der, writer);
+            Assert.assertEquals(pem, writer.toString());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PemEncoder.write(der, out);
+            Assert.assertEquals(pem, out.toString("US-ASCII"));
+
+            ByteBuffer buffer = ByteBuffer.allocate(pem.length());
+            PemEncoder.write(der, buffer);
+            Assert.assertEquals(pem, new String(buffer.array(), "US-ASCII"));
+        }
+    }
+
+    @Test
+    public void testBufferTooSmall() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        try {
+            PemEncoder.write(new byte[100], buffer);
+            Assert.fail();
+        } catch (BufferOverflowException ex) {
+            Assert.assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testCertToString() throws Exception {
+        Assert.assertEquals(expected(SavingTrustManagerTest.chain()[0].getEncoded()),
+                KeyStoreUtilities.certToString(SavingTrustManagerTest.chain()[0]));
+    }
+}
@@ -0,0 +1,46 @@
+package usn.net.ssl.util;
+
+import java.io.EOFException;
+import java.net.SocketException;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class ProtocolSnifferTest {
+
+    @Test
+    public void testClassify() throws Exception {
+        Assert.assertEquals("smtp", ProtocolSniffer.classify("220 mx.example.com ESMTP Postfix"));
+        Assert.assertEquals("smtp", ProtocolSniffer.classify("220-mx.example.com ESMTP"));
+        Assert.assertEquals("pop3", ProtocolSniffer.classify("+OK Dovecot ready."));
+        Assert.assertEquals("imap", ProtocolSniffer.classify("* OK [CAPABILITY IMAP4rev1 STARTTLS] ready"));
+        Assert.assertEquals("imap", ProtocolSniffer.classify("* PREAUTH IMAP4rev1 server logged in"));
+        Assert.assertNull(ProtocolSniffer.classify("SSH-2.0-OpenSSH_9.6"));
+        Assert.assertNull(ProtocolSniffer.classify(""));
+    }
+
+    @Test
+    public void testLooksLikePlaintext() throws Exception {
+        // JDK 8
+        Assert.assertTrue(ProtocolSniffer.looksLikePlaintext(
+                new SSLException("Unrecognized SSL message, plaintext connection?")));
+        // JDK 11 and later
+        Assert.assertTrue(ProtocolSniffer.looksLikePlaintext(
+                new SSLException("Unsupported or unrecognized SSL message")));
+        Assert.assertTrue(ProtocolSniffer.looksLikePlaintext(
+                new SSLHandshakeException("Remote host terminated the handshake")));
+        SSLHandshakeException eof = new SSLHandshakeException("handshake failed");
+        eof.initCause(new EOFException());
+        Assert.assertTrue(ProtocolSniffer.looksLikePlaintext(eof));
+        Assert.assertTrue(ProtocolSniffer.looksLikePlaintext(new SocketException("Connection reset")));
+
+        Assert.assertFalse(ProtocolSniffer.looksLikePlaintext(
+                new SSLHandshakeException("Received fatal alert: handshake_failure")));
+        Assert.assertFalse(ProtocolSniffer.looksLikePlaintext(new SocketException("Broken pipe")));
+    }
+}
@@ -0,0 +1,106 @@
+package usn.net.ssl.util;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import javax.net.ssl.X509TrustManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class SavingTrustManagerTest {
+
+    /**
+     * @return a long lived self-signed certificate from the test resources
+     */
+    static X509Certificate[] chain() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        InputStream in = SavingTrustManagerTest.class.getResourceAsStream("selfsigned.pem");
+        try {
+            return new X509Certificate[]{(X509Certificate) cf.generateCertificate(in)};
+        } finally {
+            in.close();
+        }
+    }
+
+    private static X509TrustManager parent(final boolean trusting) {
+        return new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                if (!trusting) {
+                    throw new CertificateException("untrusted");
+                }
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+    }
+
+    @Test
+    public void testCaptureOnlyAbortsTrustedChain() throws Exception {
+        InstallCert.SavingTrustManager tm = new InstallCert.SavingTrustManager(parent(true), null);
+        tm.setCaptureOnly(true);
+        try {
+            tm.checkServerTrusted(chain(), "RSA");
+            Assert.fail("the handshake should have been aborted");
+        } catch (ChainCapturedException ex) {
+            Assert.assertTrue(ex.isTrusted());
+        }
+        Assert.assertEquals(1, tm.getCapturedChain().length);
+        Assert.assertTrue(tm.isCapturedChainTrusted());
+        Assert.assertEquals(0, tm.getNewCerts().length);
+    }
+
+    @Test
+    public void testCaptureOnlyAbortsUntrustedChain() throws Exception {
+        InstallCert.SavingTrustManager tm = new InstallCert.SavingTrustManager(parent(false), null);
+        tm.setCaptureOnly(true);
+        try {
+            tm.checkServerTrusted(chain(), "RSA");
+            Assert.fail("the handshake should have been aborted");
+        } catch (ChainCapturedException ex) {
+            Assert.assertFalse(ex.isTrusted());
+            Assert.assertEquals("untrusted", ex.getCause().getMessage());
+        }
+        Assert.assertFalse(tm.isCapturedChainTrusted());
+        Assert.assertEquals(1, tm.getNewCerts().length);
+    }
+
+    @Test
+    public void testTrustedChainCompletesByDefault() throws Exception {
+        InstallCert.SavingTrustManager tm = new InstallCert.SavingTrustManager(parent(true), null);
+        tm.checkServerTrusted(chain(), "RSA");
+        Assert.assertEquals(1, tm.getCapturedChain().length);
+        Assert.assertTrue(tm.isCapturedChainTrusted());
+    }
+
+    @Test
+    public void testKnownCertificateIsNotReported() throws Exception {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        store.setCertificateEntry("known", chain()[0]);
+        KeyStoreWrapper wrapper = new KeyStoreWrapper();
+        wrapper.setStore(store);
+        Assert.assertEquals("known", wrapper.getIndex().getAlias(chain()[0]));
+
+        InstallCert.SavingTrustManager tm = new InstallCert.SavingTrustManager(parent(false),
+                Collections.singleton(wrapper));
+        // known to the store, so the handshake goes on and nothing is new
+        tm.checkServerTrusted(chain(), "RSA");
+        Assert.assertEquals(0, tm.getNewCerts().length);
+        Assert.assertFalse(tm.isCapturedChainTrusted());
+    }
+}
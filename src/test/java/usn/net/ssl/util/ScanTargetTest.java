@@ -0,0 +1,47 @@
+package usn.net.ssl.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class ScanTargetTest {
+
+    @Test
+    public void testParse() throws Exception {
+        ScanTarget t = ScanTarget.parse("example.com");
+        Assert.assertEquals("example.com", t.getHost());
+        Assert.assertEquals(443, t.getPort());
+        Assert.assertNull(t.getProtocol());
+        Assert.assertTrue(t.isDirectTls());
+
+        t = ScanTarget.parse("  mail.example.com:25 SMTP ");
+        Assert.assertEquals("mail.example.com", t.getHost());
+        Assert.assertEquals(25, t.getPort());
+        Assert.assertEquals("smtp", t.getProtocol());
+        Assert.assertFalse(t.isDirectTls());
+
+        t = ScanTarget.parse("[::1]:636,ldaps");
+        Assert.assertEquals("::1", t.getHost());
+        Assert.assertEquals(636, t.getPort());
+        Assert.assertEquals("ldaps", t.getProtocol());
+
+        t = ScanTarget.parse("fe80::1");
+        Assert.assertEquals("fe80::1", t.getHost());
+        Assert.assertEquals(443, t.getPort());
+    }
+
+    @Test
+    public void testParseSkipsCommentsAndBlanks() throws Exception {
+        Assert.assertNull(ScanTarget.parse(""));
+        Assert.assertNull(ScanTarget.parse("   "));
+        Assert.assertNull(ScanTarget.parse("# a comment"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseBadPort() throws Exception {
+        ScanTarget.parse("example.com:https");
+    }
+}
@@ -0,0 +1,77 @@
+package usn.net.ssl.util;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class ScanTimingsTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = ScanTimings.Histogram.index(value);
+            long upper = ScanTimings.Histogram.upperBound(index);
+            Assert.assertTrue(value + " <= " + upper, value <= upper);
+            Assert.assertTrue("within 12.5% of " + value, upper - value <= value / 8);
+            Assert.assertTrue(upper > previous);
+            previous = upper;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        ScanTimings timings = new ScanTimings();
+        for (int i = 1; i <= 100; i++) {
+            timings.phaseCompleted("h", 25, ScanListener.Phase.STARTTLS, "StarttlsHandlerSMTP", i * 1000000L, i != 100);
+        }
+        ScanTimings.Histogram all = timings.getHistogram(ScanListener.Phase.STARTTLS);
+        Assert.assertEquals(100, all.getCount());
+        Assert.assertEquals(1, all.getFailures());
+        Assert.assertEquals(100000000L, all.getMax());
+        assertNear(50000000L, all.getPercentile(50));
+        assertNear(95000000L, all.getPercentile(95));
+        assertNear(99000000L, all.getPercentile(99));
+        Assert.assertEquals(100000000L, all.getPercentile(100));
+        Assert.assertEquals(100, timings.getHistogram(ScanListener.Phase.STARTTLS, "StarttlsHandlerSMTP").getCount());
+        Assert.assertNull(timings.getHistogram(ScanListener.Phase.STARTTLS, "StarttlsHandlerIMAP"));
+        Assert.assertEquals(0, timings.getHistogram(ScanListener.Phase.RESOLVE).getPercentile(99));
+
+        List<String> report = timings.report();
+        Assert.assertEquals(2, report.size());
+        Assert.assertTrue(report.get(0), report.get(0).startsWith("starttls "));
+        Assert.assertTrue(report.get(1), report.get(1).startsWith("starttls StarttlsHandlerSMTP"));
+        Assert.assertTrue(report.get(0), report.get(0).contains("n=100 failed=1"));
+    }
+
+    @Test
+    public void testScanPhases() throws Exception {
+        ScanTimings timings = new ScanTimings();
+        InstallCert installer = new InstallCert();
+        installer.setScanListener(timings);
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            ScanTarget target = new ScanTarget(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+            ScanContext context = installer.newScanContext();
+            Socket socket = installer.connect(context, target, installer.resolve(context, target));
+            socket.close();
+        } finally {
+            server.close();
+        }
+        Assert.assertEquals(1, timings.getHistogram(ScanListener.Phase.RESOLVE).getCount());
+        Assert.assertEquals(1, timings.getHistogram(ScanListener.Phase.CONNECT).getCount());
+        Assert.assertEquals(0, timings.getHistogram(ScanListener.Phase.CONNECT).getFailures());
+        Assert.assertEquals(0, timings.getHistogram(ScanListener.Phase.HANDSHAKE).getCount());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue(expected + " ~ " + actual, actual >= expected && actual - expected <= expected / 8);
+    }
+}
@@ -0,0 +1,40 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayInputStream;
+import java.net.ProtocolException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class StarttlsHandlerLDAPNativeTest {
+
+    @Test
+    public void testStartTlsRequest() throws Exception {
+        byte[] ber = StarttlsHandlerLDAPNative.startTlsRequest(1);
+        byte[] head = {0x30, 0x1d, 0x02, 0x01, 0x01, 0x77, 0x18, (byte) 0x80, 0x16};
+        Assert.assertEquals(head.length + 22, ber.length);
+        for (int i = 0; i < head.length; i++) {
+            Assert.assertEquals(head[i], ber[i]);
+        }
+        Assert.assertEquals(StarttlsHandlerLDAPNative.STARTTLS_OID,
+                new String(ber, head.length, 22, "US-ASCII"));
+    }
+
+    @Test
+    public void testReadResultCode() throws Exception {
+        // success, empty matchedDN and diagnostic message
+        byte[] success = {0x30, 0x0c, 0x02, 0x01, 0x01, 0x78, 0x07, 0x0a, 0x01, 0x00, 0x04, 0x00, 0x04, 0x00};
+        Assert.assertEquals(0, StarttlsHandlerLDAPNative.readResultCode(new ByteArrayInputStream(success), 1));
+        // protocolError (2)
+        byte[] refused = {0x30, 0x0c, 0x02, 0x01, 0x01, 0x78, 0x07, 0x0a, 0x01, 0x02, 0x04, 0x00, 0x04, 0x00};
+        Assert.assertEquals(2, StarttlsHandlerLDAPNative.readResultCode(new ByteArrayInputStream(refused), 1));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testNotLdap() throws Exception {
+        StarttlsHandlerLDAPNative.readResultCode(new ByteArrayInputStream("220 mx ESMTP\r\n".getBytes("US-ASCII")), 1);
+    }
+}
@@ -0,0 +1,86 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class StarttlsHandlerPOSTGRESNativeTest {
+
+    private static boolean negotiate(String replies, ByteArrayOutputStream out) throws Exception {
+        return StarttlsHandlerPOSTGRESNative.negotiate(new ByteArrayInputStream(replies.getBytes("US-ASCII")), out);
+    }
+
+    @Test
+    public void testSslRequest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(negotiate("S", out));
+        // length 8, then 1234 and 5679 as 16 bit halves
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 8, 0x04, (byte) 0xd2, 0x16, 0x2f}, out.toByteArray());
+
+        Assert.assertFalse(negotiate("N", new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testErrorResponse() throws Exception {
+        // a server too old for SSLRequest answers with an ErrorResponse
+        negotiate("E\0\0\0PSFATAL", new ByteArrayOutputStream());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testClosed() throws Exception {
+        negotiate("", new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testHandshake() throws Exception {
+        final SSLContext tls = NioHandshakeEngineTest.serverContext();
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        if (in.readInt() != 8 || in.readInt() != StarttlsHandlerPOSTGRESNative.SSL_REQUEST_CODE) {
+                            return;
+                        }
+                        socket.getOutputStream().write('S');
+                        SSLSocket ssl = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, true);
+                        ssl.setUseClientMode(false);
+                        ssl.startHandshake();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException ex) {
+                    // the client does not trust the key
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        InstallCert installer = new InstallCert();
+        installer.setExcludeAllTrustStates(true);
+        try {
+            ScanContext context = installer.newScanContext();
+            Assert.assertTrue(new StarttlsHandlerPOSTGRESNative().run(context, "localhost", server.getLocalPort(), null));
+            Assert.assertEquals("CN=localhost", context.getCapturedChain()[0].getSubjectX500Principal().getName());
+        } finally {
+            server.close();
+            installer.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package usn.net.ssl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class StarttlsRaceTest {
+
+    private static final String PREFIX = StarttlsRaceTest.class.getName() + "$";
+
+    // counted down by a Loser whose socket was closed by the race
+    private static volatile CountDownLatch cancelled;
+
+    private ServerSocket server;
+    private InstallCert installer;
+
+    /**
+     * connects to the test server and sends a single command line
+     */
+    private static Socket connect(ScanContext context, String host, int port, String command) throws IOException {
+        Socket socket = new TrackingSocketFactory(context).createSocket();
+        socket.connect(new InetSocketAddress(host, port), context.getConnectionTimeout());
+        socket.setSoTimeout(context.getConnectionTimeout());
+        socket.getOutputStream().write((command + "\n").getBytes("US-ASCII"));
+        socket.getOutputStream().flush();
+        return socket;
+    }
+
+    /**
+     * asks the server to start TLS and captures its chain
+     */
+    public static class Winner implements StarttlsHandler {
+
+        @Override
+        public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+            return Starttls.handshake(context, connect(context, host, port, "tls"), host, port, "test");
+        }
+    }
+
+    /**
+     * waits for a server that never answers, until the race closes its socket
+     */
+    public static class Loser implements StarttlsHandler {
+
+        @Override
+        public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+            try {
+                Socket socket = connect(context, host, port, "wait");
+                try {
+                    socket.getInputStream().read();
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException ex) {
+                if (context.isCancelled()) {
+                    cancelled.countDown();
+                }
+                throw ex;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * fails right away
+     */
+    public static class Failing implements StarttlsHandler {
+
+        @Override
+        public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+            throw new IOException("no such protocol");
+        }
+    }
+
+    /**
+     * does not understand the server, has {@link Winner} as its fallback
+     */
+    public static class Confused implements StarttlsHandler {
+
+        @Override
+        public boolean run(ScanContext context, String host, int port, Socket tunnel) throws Exception {
+            throw new ProtocolException("unexpected greeting");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final SSLContext tls = NioHandshakeEngineTest.serverContext();
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(tls, socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ex) {
+                    // closed by the test
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        installer = new InstallCert();
+        installer.setExcludeAllTrustStates(true);
+        installer.setConnectionTimeout(10000);
+        cancelled = new CountDownLatch(1);
+        Starttls.registerFallback(PREFIX + "Confused", PREFIX + "Winner");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        installer.close();
+    }
+
+    /**
+     * "tls" starts TLS on the connection, anything else gets no answer
+     */
+    private static void serve(SSLContext tls, Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            StringBuilder command = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                command.append((char) b);
+            }
+            if ("tls".equals(command.toString())) {
+                SSLSocket ssl = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, true);
+                ssl.setUseClientMode(false);
+                ssl.startHandshake();
+            } else {
+                while (in.read() != -1) {
+                    // until the client hangs up
+                }
+            }
+        } catch (IOException ex) {
+            // the client does not trust the key
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing was written
+            }
+        }
+    }
+
+    private boolean race(ScanContext context, String... handlers) throws Exception {
+        String[] names = new String[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            names[i] = PREFIX + handlers[i];
+        }
+        return Starttls.race(context, Arrays.asList(names), "localhost", server.getLocalPort(), null);
+    }
+
+    @Test
+    public void testWinnerCancelsLosers() throws Exception {
+        ScanContext context = installer.newScanContext();
+        long start = System.nanoTime();
+        Assert.assertTrue(race(context, "Loser", "Failing", "Winner"));
+        // long before the loser would have timed out
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        Assert.assertTrue(context.isChainCaptured());
+        Assert.assertEquals("CN=localhost", context.getCapturedChain()[0].getSubjectX500Principal().getName());
+        Assert.assertTrue("the loser was not cancelled", cancelled.await(5, TimeUnit.SECONDS));
+        // the forks are cancelled, not the scan itself
+        Assert.assertFalse(context.isCancelled());
+    }
+
+    @Test
+    public void testFallbackWhenAllFail() throws Exception {
+        ScanContext context = installer.newScanContext();
+        Assert.assertTrue(race(context, "Failing", "Confused"));
+        Assert.assertTrue(context.isChainCaptured());
+
+        context = installer.newScanContext();
+        Assert.assertFalse(race(context, "Failing", "Failing"));
+        Assert.assertFalse(context.isChainCaptured());
+    }
+}
@@ -0,0 +1,59 @@
+package usn.net.ssl.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author AO
+ */
+public class TextStarttlsHandlerTest {
+
+    private static boolean negotiate(TextStarttlsHandler handler, String greeting, String replies,
+            ByteArrayOutputStream out) throws Exception {
+        return handler.negotiate("localhost", new ProtocolSniffer.Greeting(greeting, ProtocolSniffer.classify(greeting)),
+                new ByteArrayInputStream(replies.getBytes("US-ASCII")), out);
+    }
+
+    @Test
+    public void testSmtp() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(negotiate(new StarttlsHandlerSMTPNative(), "220-mx ESMTP",
+                "220 mx ready\r\n250-mx\r\n250-PIPELINING\r\n250 STARTTLS\r\n220 go ahead\r\n", out));
+        Assert.assertTrue(out.toString("US-ASCII").endsWith("STARTTLS\r\n"));
+
+        out = new ByteArrayOutputStream();
+        Assert.assertFalse(negotiate(new StarttlsHandlerSMTPNative(), "220 mx ESMTP",
+                "250-mx\r\n250 8BITMIME\r\n", out));
+        Assert.assertTrue(out.toString("US-ASCII").endsWith("QUIT\r\n"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testSmtpUnexpectedReply() throws Exception {
+        negotiate(new StarttlsHandlerSMTPNative(), "220 mx ESMTP", "500 what\r\n", new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testPop3() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(negotiate(new StarttlsHandlerPOP3Native(), "+OK ready",
+                "+OK\r\nUSER\r\nSTLS\r\n.\r\n+OK begin\r\n", out));
+        Assert.assertEquals("CAPA\r\nSTLS\r\n", out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testImap() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(negotiate(new StarttlsHandlerIMAPNative(), "* OK [CAPABILITY IMAP4rev1 STARTTLS] ready",
+                "a2 OK begin\r\n", out));
+        Assert.assertEquals("a2 STARTTLS\r\n", out.toString("US-ASCII"));
+
+        out = new ByteArrayOutputStream();
+        Assert.assertTrue(negotiate(new StarttlsHandlerIMAPNative(), "* OK ready",
+                "* CAPABILITY IMAP4rev1 STARTTLS\r\na1 OK done\r\na2 OK begin\r\n", out));
+        Assert.assertEquals("a1 CAPABILITY\r\na2 STARTTLS\r\n", out.toString("US-ASCII"));
+    }
+}
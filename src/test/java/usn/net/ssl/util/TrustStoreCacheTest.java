@@ -0,0 +1,127 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class TrustStoreCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void save(File file, char[] password, X509Certificate... certs) throws Exception {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        for (int i = 0; i < certs.length; i++) {
+            store.setCertificateEntry("cert" + i, certs[i]);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            store.store(out, password);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedStoreIsNotParsed() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = folder.newFile("cacerts");
+        save(file, "secret".toCharArray(), cert);
+        TrustStoreCache cache = new TrustStoreCache(folder.newFolder("cache"));
+
+        KeyStoreWrapper first = cache.load(file, "secret".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertEquals("cert0", first.getIndex().getAlias(cert));
+
+        // a wrong password only fails once the store is actually parsed
+        KeyStoreWrapper second = cache.load(file, "wrong".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertEquals("cert0", second.getIndex().getAlias(cert));
+        Assert.assertTrue(second.getIndex().contains(cert));
+        Assert.assertFalse(second.getIndex().contains(NioHandshakeEngineTest.serverCertificate()));
+    }
+
+    @Test
+    public void testIdenticalStoresAreShared() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = folder.newFile("cacerts");
+        save(file, "secret".toCharArray(), cert);
+        File copy = folder.newFile("copy");
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        TrustStoreCache cache = new TrustStoreCache(null);
+
+        KeyStoreWrapper first = cache.load(file, "secret".toCharArray(), KeyStore.getDefaultType());
+        KeyStoreWrapper second = cache.load(copy, "secret".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertSame(first.getIndex(), second.getIndex());
+        Assert.assertEquals(copy, second.getKeyStoreLocation());
+        Assert.assertFalse(first.isLoaded());
+
+        // loaded on first use, once for both
+        Assert.assertSame(first.getStore(), second.getStore());
+        Assert.assertTrue(first.isLoaded());
+    }
+
+    @Test
+    public void testFailedLoadIsNotShared() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = folder.newFile("cacerts");
+        save(file, "secret".toCharArray(), cert);
+        File copy = folder.newFile("copy");
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        TrustStoreCache cache = new TrustStoreCache(null);
+        try {
+            cache.load(file, "wrong".toCharArray(), KeyStore.getDefaultType());
+            Assert.fail("the password is wrong");
+        } catch (IOException ex) {
+            // expected
+        }
+        KeyStoreWrapper wrapper = cache.load(copy, "secret".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertTrue(wrapper.getIndex().contains(cert));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChangedStoreIsParsedAgain() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = folder.newFile("cacerts");
+        save(file, "secret".toCharArray(), cert);
+        TrustStoreCache cache = new TrustStoreCache(folder.newFolder("cache"));
+        cache.load(file, "secret".toCharArray(), KeyStore.getDefaultType());
+
+        save(file, "secret".toCharArray());
+        cache.load(file, "wrong".toCharArray(), KeyStore.getDefaultType());
+    }
+
+    @Test(expected = IOException.class)
+    public void testForeignWritableEntryIsIgnored() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        File file = folder.newFile("cacerts");
+        save(file, "secret".toCharArray(), cert);
+        File directory = new File(folder.getRoot(), "home/.installcert/cache");
+        TrustStoreCache cache = new TrustStoreCache(directory);
+        cache.load(file, "secret".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())));
+        File[] entries = directory.listFiles();
+        Assert.assertEquals(1, entries.length);
+        Assert.assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(entries[0].toPath())));
+
+        // others could have planted trust anchors, so the store is parsed
+        Files.setPosixFilePermissions(entries[0].toPath(), PosixFilePermissions.fromString("rw-rw-r--"));
+        new TrustStoreCache(directory).load(file, "wrong".toCharArray(), KeyStore.getDefaultType());
+    }
+}
@@ -0,0 +1,74 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class TrustStoreDiscoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TrustStoreCache saved;
+
+    @Before
+    public void setUp() throws Exception {
+        saved = TrustStoreCache.getDefault();
+        TrustStoreCache.setDefault(new TrustStoreCache(folder.newFolder("cache")));
+    }
+
+    @After
+    public void tearDown() {
+        TrustStoreCache.setDefault(saved);
+    }
+
+    private File install(File root, String path) throws Exception {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            store.store(out, InstallCert.DEFAULT);
+        } finally {
+            out.close();
+        }
+        return file.getCanonicalFile();
+    }
+
+    @Test
+    public void testDiscover() throws Exception {
+        File root = folder.newFolder("jvm");
+        File other = folder.newFolder("opt");
+        Set<File> expected = new HashSet<File>();
+        expected.add(install(root, "java-17/lib/security/cacerts"));
+        expected.add(install(root, "java-8/jre/lib/security/cacerts"));
+        expected.add(install(other, "vendor/jdk-21/lib/security/cacerts"));
+        expected.add(install(other, "jdk-11.jdk/Contents/Home/lib/security/cacerts"));
+        // below the maximum depth
+        install(other, "a/b/jdk/lib/security/cacerts");
+
+        TrustStoreDiscovery discovery = new TrustStoreDiscovery();
+        // the same root twice is walked once
+        discovery.setRoots(Arrays.asList(root, other, new File(root, "../jvm")));
+        Set<File> found = new HashSet<File>();
+        for (KeyStoreWrapper wrapper : discovery.discover()) {
+            found.add(wrapper.getKeyStoreLocation().getCanonicalFile());
+        }
+        Assert.assertEquals(expected, found);
+    }
+}
@@ -0,0 +1,154 @@
+package usn.net.ssl.util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author AO
+ */
+public class TrustStoreTransactionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCommit() throws Exception {
+        File file = new File(folder.getRoot(), "truststore");
+        KeyStore empty = KeyStore.getInstance(KeyStore.getDefaultType());
+        empty.load(null, null);
+        TrustStoreTransaction.write(empty, file, "secret".toCharArray());
+        boolean posix = Files.getFileStore(file.toPath()).supportsFileAttributeView("posix");
+        if (posix) {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        }
+
+        InstallCert installer = new InstallCert();
+        installer.addTrustStore(file, "secret".toCharArray());
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        TrustStoreTransaction transaction = installer.beginTransaction();
+        transaction.add(Collections.singleton(cert), "one");
+        transaction.add(Collections.singleton(cert), "two");
+        Assert.assertEquals(1, transaction.size());
+        transaction.commit();
+        Assert.assertEquals(0, transaction.size());
+
+        KeyStore written = KeyStoreUtilities.getKeyStore(file, "secret".toCharArray());
+        Assert.assertEquals(Collections.singletonList(written.getCertificateAlias(cert)),
+                Collections.list(written.aliases()));
+        Assert.assertTrue(written.getCertificateAlias(cert).startsWith("one - "));
+        // nothing left behind but the store and its lock file
+        String[] files = folder.getRoot().list();
+        Arrays.sort(files);
+        Assert.assertEquals(Arrays.asList("truststore", "truststore.lck"), Arrays.asList(files));
+        if (posix) {
+            Assert.assertEquals("rw-r--r--",
+                    PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        }
+        installer.close();
+    }
+
+    @Test
+    public void testOnlyChangedStoresAreWritten() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        KeyStore known = KeyStore.getInstance(KeyStore.getDefaultType());
+        known.load(null, null);
+        known.setCertificateEntry("known", cert);
+        File clean = new File(folder.getRoot(), "clean");
+        TrustStoreTransaction.write(known, clean, "secret".toCharArray());
+        Assert.assertTrue(clean.setLastModified(1000000000L));
+        File[] dirty = new File[3];
+        InstallCert installer = new InstallCert();
+        installer.addTrustStore(clean, "secret".toCharArray());
+        for (int i = 0; i < dirty.length; i++) {
+            KeyStore empty = KeyStore.getInstance(KeyStore.getDefaultType());
+            empty.load(null, null);
+            dirty[i] = new File(folder.getRoot(), "dirty" + i);
+            TrustStoreTransaction.write(empty, dirty[i], "secret".toCharArray());
+            installer.addTrustStore(dirty[i], "secret".toCharArray());
+        }
+
+        installer.applyChanges(Collections.singleton(cert), "host");
+        Assert.assertEquals(1000000000L, clean.lastModified());
+        for (File file : dirty) {
+            Assert.assertNotNull(KeyStoreUtilities.getKeyStore(file, "secret".toCharArray()).getCertificateAlias(cert));
+        }
+        installer.close();
+    }
+
+    @Test
+    public void testConcurrentChangesAreMerged() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        X509Certificate other = NioHandshakeEngineTest.serverCertificate();
+        File file = new File(folder.getRoot(), "truststore");
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        TrustStoreTransaction.write(store, file, "secret".toCharArray());
+        InstallCert installer = new InstallCert();
+        installer.addTrustStore(file, "secret".toCharArray());
+        Assert.assertEquals(0, installer.getTrustStoresToModify().iterator().next().getStore().size());
+
+        // another process adds another certificate after the store was loaded
+        store.setCertificateEntry("other", other);
+        TrustStoreTransaction.write(store, file, "secret".toCharArray());
+
+        installer.applyChanges(Collections.singleton(cert), "host");
+        KeyStore written = KeyStoreUtilities.getKeyStore(file, "secret".toCharArray());
+        Assert.assertEquals(2, written.size());
+        Assert.assertEquals("other", written.getCertificateAlias(other));
+        Assert.assertTrue(written.getCertificateAlias(cert).startsWith("host - "));
+        installer.close();
+    }
+
+    @Test
+    public void testSharedStoresAreMergedSeparately() throws Exception {
+        X509Certificate cert = SavingTrustManagerTest.chain()[0];
+        X509Certificate other = NioHandshakeEngineTest.serverCertificate();
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        File a = new File(folder.getRoot(), "a");
+        File b = new File(folder.getRoot(), "b");
+        TrustStoreTransaction.write(store, a, "secret".toCharArray());
+        Files.copy(a.toPath(), b.toPath());
+        TrustStoreCache cache = new TrustStoreCache(null);
+        KeyStoreWrapper wrapperA = cache.load(a, "secret".toCharArray(), KeyStore.getDefaultType());
+        KeyStoreWrapper wrapperB = cache.load(b, "secret".toCharArray(), KeyStore.getDefaultType());
+        Assert.assertSame(wrapperA.getIndex(), wrapperB.getIndex());
+        InstallCert installer = new InstallCert();
+        installer.addAll(new HashSet<KeyStoreWrapper>(Arrays.asList(wrapperA, wrapperB)));
+
+        // another process adds a certificate to a only
+        store.setCertificateEntry("other", other);
+        TrustStoreTransaction.write(store, a, "secret".toCharArray());
+
+        TrustStoreTransaction transaction = installer.beginTransaction();
+        transaction.add(Collections.singleton(cert), "host");
+        transaction.commit();
+        Assert.assertNotSame(wrapperA.getIndex(), wrapperB.getIndex());
+        Assert.assertTrue(wrapperA.getIndex().contains(other));
+        Assert.assertFalse(wrapperB.getIndex().contains(other));
+
+        // b does not have other, so importing it must write b as well
+        transaction = installer.beginTransaction();
+        transaction.add(Collections.singleton(other), "host");
+        transaction.commit();
+        KeyStore writtenA = KeyStoreUtilities.getKeyStore(a, "secret".toCharArray());
+        KeyStore writtenB = KeyStoreUtilities.getKeyStore(b, "secret".toCharArray());
+        Assert.assertEquals(2, writtenA.size());
+        Assert.assertEquals("other", writtenA.getCertificateAlias(other));
+        Assert.assertEquals(2, writtenB.size());
+        Assert.assertNotNull(writtenB.getCertificateAlias(cert));
+        Assert.assertNotNull(writtenB.getCertificateAlias(other));
+        installer.close();
+    }
+}